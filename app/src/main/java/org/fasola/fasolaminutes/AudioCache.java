@@ -0,0 +1,729 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.media.MediaPlayer;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk cache of recordings, keyed by url.
+ *
+ * <p>{@link #setDataSource} plays a cached recording from its file. Otherwise (on API 23+) the
+ * recording is streamed through a {@link MediaDataSource} that downloads it to a temp file as
+ * the player reads it, so a song is only downloaded once. Complete downloads are added to the
+ * cache; partial ones (e.g. when the song is skipped) are deleted.
+ *
+ * <p>Cached files are named by a hash of the url and their length. Downloads are only added
+ * when they match the Content-Length, and a file with the wrong length is discarded. Files
+ * that fail to play should be removed with {@link #remove}.
+ *
+ * <p>Upcoming songs can be downloaded ahead of time with {@link #prefetch}.
+ *
+ * <p>The cache is bounded by a byte budget ({@link #setMaxBytes}), with LRU eviction.
+ */
+public class AudioCache {
+    private static final String TAG = "AudioCache";
+    private static final String DIRECTORY = "audio";
+    private static final String PART_SUFFIX = ".part";
+    private static final String PREFERENCES_FILE = "PlaybackPreferences";
+    private static final String MAX_BYTES_KEY = "audioCacheBytes";
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int TIMEOUT_MS = 15000;
+    // Reads further ahead of a download than this use a Range request
+    private static final long SEEK_AHEAD_BYTES = 512 * 1024;
+    private static final int MAX_ERRORS = 32;
+
+    // Singleton
+    private static AudioCache instance = null;
+
+    private AudioCache(Context context) {
+        mContext = context.getApplicationContext();
+        mDir = new File(mContext.getCacheDir(), DIRECTORY);
+        mMaxBytes = mContext.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE)
+                .getLong(MAX_BYTES_KEY, DEFAULT_MAX_BYTES);
+        // One thread for disk housekeeping, so the main thread never scans the directory
+        mDisk = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG + " disk");
+                    }
+                });
+        mDisk.allowCoreThreadTimeOut(true);
+        mDisk.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    public static synchronized AudioCache getInstance(Context context) {
+        if (instance == null)
+            instance = new AudioCache(context);
+        return instance;
+    }
+
+    private final Context mContext;
+    private long mMaxBytes;
+    private final File mDir;
+    private final ThreadPoolExecutor mDisk;
+    private long mBytes = 0;
+    // Cached files by key (access order makes this an LRU)
+    private final Map<String, File> mFiles = new LinkedHashMap<>(16, 0.75f, true);
+    // Last download error for recent urls
+    private final Map<String, IOException> mErrors =
+        new LinkedHashMap<String, IOException>(MAX_ERRORS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, IOException> eldest) {
+                return size() > MAX_ERRORS;
+            }
+        };
+
+    // Scan the cache directory, oldest files first
+    // Recordings cached while this runs are newer, so they stay at the end of the LRU order.
+    private void load() {
+        mDir.mkdirs();
+        File[] files = mDir.listFiles();
+        if (files == null)
+            return;
+        // Part files that are being written (listed after the scan, so new ones aren't missed)
+        List<File> partFiles = new ArrayList<>();
+        synchronized (this) {
+            for (Download download : mDownloads.values())
+                partFiles.add(download.mPartFile);
+        }
+        final Map<File, Long> lastModified = new HashMap<>();
+        List<File> entries = new ArrayList<>();
+        for (File file : files) {
+            String[] parts = file.getName().split("\\.");
+            // Remove leftover downloads and files that don't match their length
+            if (parts.length != 2 || ! parts[1].equals(String.valueOf(file.length()))) {
+                if (! partFiles.contains(file))
+                    file.delete();
+                continue;
+            }
+            lastModified.put(file, file.lastModified());
+            entries.add(file);
+        }
+        Collections.sort(entries, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = lastModified.get(a) - lastModified.get(b);
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        synchronized (this) {
+            Map<String, File> added = new LinkedHashMap<>(mFiles);
+            mFiles.clear();
+            for (File file : entries) {
+                String key = file.getName().split("\\.")[0];
+                if (! added.containsKey(key)) {
+                    mFiles.put(key, file);
+                    mBytes += file.length();
+                }
+                else if (! file.equals(added.get(key)))
+                    file.delete(); // Replaced by a new download
+            }
+            mFiles.putAll(added);
+            trimToSize(mMaxBytes);
+        }
+    }
+
+    /**
+     * Sets the cache size, evicting recordings over the new size.
+     *
+     * @param maxBytes size in bytes (0 disables the cache)
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        mContext.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE).edit()
+                .putLong(MAX_BYTES_KEY, maxBytes)
+                .apply();
+        trimToSize(maxBytes);
+    }
+
+    public synchronized long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /** Returns the total size of cached recordings. */
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    /**
+     * Gets the cached file for a url.
+     *
+     * @param url recording url
+     * @return file, or {@code null} if the recording isn't cached
+     */
+    public synchronized File get(String url) {
+        String key = getKey(url);
+        File file = mFiles.get(key);
+        if (file == null)
+            return null;
+        if (! file.getName().equals(key + "." + file.length())) {
+            Log.w(TAG, "Removing damaged file for " + url);
+            removeKey(key);
+            return null;
+        }
+        touch(file);
+        return file;
+    }
+
+    // Update a file's time for LRU order on the next load
+    private void touch(final File file) {
+        final long now = System.currentTimeMillis();
+        mDisk.execute(new Runnable() {
+            @Override
+            public void run() {
+                file.setLastModified(now);
+            }
+        });
+    }
+
+    /** Returns {@code true} if a recording is cached. */
+    public synchronized boolean contains(String url) {
+        return mFiles.containsKey(getKey(url));
+    }
+
+    /**
+     * Removes a recording (e.g. if it fails to play).
+     *
+     * @param url recording url
+     * @return {@code true} if the recording was cached
+     */
+    public synchronized boolean remove(String url) {
+        return removeKey(getKey(url));
+    }
+
+    private boolean removeKey(String key) {
+        File file = mFiles.remove(key);
+        if (file == null)
+            return false;
+        mBytes -= file.length();
+        file.delete();
+        return true;
+    }
+
+    // Add a complete download
+    private synchronized void put(String key, File partFile, long length) {
+        if (length > mMaxBytes / 4) {
+            partFile.delete();
+            return;
+        }
+        File file = new File(mDir, key + "." + length);
+        removeKey(key);
+        if (! partFile.renameTo(file)) {
+            Log.e(TAG, "Unable to rename " + partFile + " to " + file);
+            partFile.delete();
+            return;
+        }
+        mFiles.put(key, file);
+        mBytes += length;
+        trimToSize(mMaxBytes);
+    }
+
+    private synchronized void trimToSize(long maxBytes) {
+        Iterator<File> it = mFiles.values().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            File file = it.next();
+            mBytes -= file.length();
+            file.delete();
+            it.remove();
+        }
+    }
+
+    // SHA-1 of the url
+    private static String getKey(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(url.hashCode()); // Not expected
+        }
+    }
+
+    // Downloads
+    //---------------------------------------------------------------------------------------------
+    /** Download error for an HTTP response other than 200 OK */
+    public static class HttpStatusException extends IOException {
+        public final int status;
+
+        public HttpStatusException(int status, String url) {
+            super("HTTP " + status + ": " + url);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Gets the error from the last download of a url (e.g. to classify a playback error).
+     *
+     * @param url recording url
+     * @return error, or {@code null} if the last download succeeded or there was none
+     * @see HttpStatusException
+     */
+    public synchronized IOException getDownloadError(String url) {
+        return mErrors.get(url);
+    }
+
+    private synchronized void putDownloadError(String url, IOException error) {
+        if (error != null)
+            mErrors.put(url, error);
+        else
+            mErrors.remove(url);
+    }
+
+    private interface DownloadListener {
+        /** Called with the Content-Length (or -1) before any data. */
+        void onLength(long length);
+        /** Called after data is written; return false to stop. */
+        boolean onData(int count);
+    }
+
+    /**
+     * Downloads a url.
+     *
+     * @param url url
+     * @param out output (closed when finished)
+     * @param listener progress listener
+     * @return number of bytes, or -1 if the listener stopped the download
+     * @throws IOException on errors or if the download doesn't match its Content-Length
+     */
+    private static long download(String url, FileOutputStream out, DownloadListener listener)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+        try {
+            int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK)
+                throw new HttpStatusException(status, url);
+            long length;
+            try {
+                String header = connection.getHeaderField("Content-Length");
+                length = header != null ? Long.parseLong(header) : -1;
+            } catch (NumberFormatException e) {
+                length = -1;
+            }
+            listener.onLength(length);
+            InputStream in = connection.getInputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+                total += count;
+                if (! listener.onData(count))
+                    return -1;
+            }
+            if (length >= 0 && total != length)
+                throw new IOException("Incomplete download: " + url);
+            return total;
+        } finally {
+            connection.disconnect();
+            out.close();
+        }
+    }
+
+    // Shared downloads
+    //---------------------------------------------------------------------------------------------
+    /**
+     * A download to a part file, shared by the prefetcher and any players reading it.
+     *
+     * <p>The download stops early once no player is reading it and the prefetcher doesn't want
+     * it anymore. A complete download is added to the cache.
+     */
+    private class Download implements Runnable {
+        final String mUrl;
+        final String mKey;
+        final File mPartFile;
+        private final FileOutputStream mOut;
+        final Object mLock = new Object();
+        boolean mHasLength = false;
+        long mLength = -1; // Content-Length, or -1 if unknown
+        long mDownloaded = 0;
+        boolean mIsDone = false;
+        IOException mError;
+        private int mReaders = 0;
+        private boolean mIsPrefetch;
+
+        // Call with the AudioCache lock
+        Download(String url, String key, boolean isPrefetch) throws IOException {
+            mUrl = url;
+            mKey = key;
+            mIsPrefetch = isPrefetch;
+            mDir.mkdirs();
+            mPartFile = File.createTempFile(key, PART_SUFFIX, mDir);
+            mOut = new FileOutputStream(mPartFile);
+            mDownloads.put(key, this);
+            mErrors.remove(url); // Don't let an old error classify this download's failures
+        }
+
+        // Open a reader (call with the AudioCache lock, so the part file is still there)
+        CachingSource open() throws IOException {
+            synchronized (mLock) {
+                if (mIsDone)
+                    return null;
+                CachingSource source = new CachingSource(this);
+                mReaders++;
+                return source;
+            }
+        }
+
+        void close() {
+            synchronized (mLock) {
+                mReaders--;
+                mLock.notifyAll();
+            }
+        }
+
+        void setPrefetch(boolean isPrefetch) {
+            synchronized (mLock) {
+                mIsPrefetch = isPrefetch;
+            }
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            long length = -1;
+            try {
+                length = download(mUrl, mOut, new DownloadListener() {
+                    @Override
+                    public void onLength(long length) {
+                        synchronized (mLock) {
+                            mLength = length;
+                            mHasLength = true;
+                            mLock.notifyAll();
+                        }
+                    }
+
+                    @Override
+                    public boolean onData(int count) {
+                        synchronized (mLock) {
+                            if (mReaders == 0 && ! mIsPrefetch)
+                                return false; // Nobody wants it anymore
+                            mDownloaded += count;
+                            mLock.notifyAll();
+                            return true;
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                Log.w(TAG, "Error downloading " + mUrl, e);
+                putDownloadError(mUrl, e);
+                synchronized (mLock) {
+                    mError = e;
+                }
+            }
+            if (length >= 0) {
+                Log.v(TAG, "Downloaded " + mUrl + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+                putDownloadError(mUrl, null);
+            }
+            finish(this, length);
+        }
+    }
+
+    // Downloads in progress by key
+    private final Map<String, Download> mDownloads = new HashMap<>();
+
+    // End a download, adding it to the cache if it is complete
+    private synchronized void finish(Download download, long length) {
+        synchronized (download.mLock) {
+            download.mHasLength = true;
+            download.mIsDone = true;
+            download.mLock.notifyAll();
+        }
+        if (length >= 0)
+            put(download.mKey, download.mPartFile, length);
+        else
+            download.mPartFile.delete(); // Still readable by players until they are closed
+        if (mDownloads.get(download.mKey) == download)
+            mDownloads.remove(download.mKey);
+    }
+
+    // Open a reader for a url, sharing a download in progress, or starting one
+    // Returns null if the recording was cached in the meantime
+    @RequiresApi(Build.VERSION_CODES.M)
+    private synchronized CachingSource openDownload(String url) throws IOException {
+        String key = getKey(url);
+        if (mFiles.containsKey(key))
+            return null;
+        Download download = mDownloads.get(key);
+        CachingSource source = download != null ? download.open() : null;
+        if (source == null) {
+            download = new Download(url, key, false);
+            source = download.open();
+            new Thread(download, TAG).start();
+        }
+        return source;
+    }
+
+    // Prefetch
+    //---------------------------------------------------------------------------------------------
+    private final List<String> mPrefetchUrls = new ArrayList<>(); // Pending, in order
+    private Download mPrefetch; // Download started by the prefetcher
+    private Thread mPrefetchThread;
+
+    /**
+     * Downloads recordings in the background, one at a time.
+     *
+     * <p>Replaces any pending urls from the last call. The current download is canceled unless
+     * its url is still in the list or a player is reading it. Recordings that are cached or
+     * being downloaded are skipped.
+     *
+     * @param urls recording urls in order (empty to cancel)
+     */
+    public synchronized void prefetch(List<String> urls) {
+        mPrefetchUrls.clear();
+        for (String url : urls) {
+            if (! mPrefetchUrls.contains(url) && ! contains(url) &&
+                    ! mDownloads.containsKey(getKey(url)))
+                mPrefetchUrls.add(url);
+        }
+        if (mPrefetch != null && ! urls.contains(mPrefetch.mUrl))
+            mPrefetch.setPrefetch(false);
+        if (! mPrefetchUrls.isEmpty() && mPrefetchThread == null) {
+            mPrefetchThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    Download download;
+                    while ((download = nextPrefetch()) != null)
+                        download.run();
+                }
+            }, TAG + " prefetch");
+            mPrefetchThread.start();
+        }
+    }
+
+    // Start the next download to prefetch (or end the prefetch thread)
+    private synchronized Download nextPrefetch() {
+        mPrefetch = null;
+        while (! mPrefetchUrls.isEmpty()) {
+            String url = mPrefetchUrls.remove(0);
+            String key = getKey(url);
+            if (mFiles.containsKey(key) || mDownloads.containsKey(key))
+                continue;
+            try {
+                mPrefetch = new Download(url, key, true);
+                return mPrefetch;
+            } catch (IOException e) {
+                Log.w(TAG, "Error prefetching " + url, e);
+            }
+        }
+        mPrefetchThread = null;
+        return null;
+    }
+
+    /**
+     * Sets a player's data source to the cached recording if there is one, otherwise to a
+     * stream that fills the cache (API 23+) or the url.
+     *
+     * <p>If the recording is already being downloaded (e.g. prefetched), the player shares that
+     * download, starting from the bytes it already has.
+     *
+     * @param player MediaPlayer in the idle state
+     * @param url recording url
+     * @return {@code true} if the recording is played from the cache
+     * @throws IOException from {@link MediaPlayer#setDataSource}
+     */
+    public boolean setDataSource(MediaPlayer player, String url) throws IOException {
+        File file = get(url);
+        if (file == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M && getMaxBytes() > 0) {
+            try {
+                CachingSource source = openDownload(url);
+                if (source != null) {
+                    player.setDataSource(source);
+                    return false;
+                }
+                file = get(url); // Finished downloading
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to cache " + url, e);
+            }
+        }
+        if (file != null) {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                player.setDataSource(in.getFD());
+                return true;
+            } finally {
+                in.close();
+            }
+        }
+        player.setDataSource(url);
+        return false;
+    }
+
+    /**
+     * Serves a player from the downloaded part of a {@link Download}.
+     *
+     * <p>Reads far ahead of the download (i.e. a forward seek) are served by a Range request
+     * instead of waiting for the download to catch up. If the server doesn't support ranges,
+     * the read waits.
+     */
+    @RequiresApi(Build.VERSION_CODES.M)
+    private class CachingSource extends MediaDataSource {
+        private final Download mDownload;
+        private final Object mLock;
+        private final RandomAccessFile mIn;
+        private boolean mIsClosed = false;
+        // Range request for reads ahead of the download
+        private boolean mCanSeek = true;
+        private HttpURLConnection mRange;
+        private InputStream mRangeIn;
+        private long mRangePosition;
+
+        CachingSource(Download download) throws IOException {
+            mDownload = download;
+            mLock = download.mLock;
+            mIn = new RandomAccessFile(download.mPartFile, "r");
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            long available;
+            synchronized (mLock) {
+                if (mCanSeek && ! mDownload.mIsDone &&
+                        position > mDownload.mDownloaded + SEEK_AHEAD_BYTES)
+                    available = -1; // Too far ahead to wait
+                else {
+                    // Wait for the requested bytes to be downloaded
+                    try {
+                        while (mDownload.mDownloaded < position + size && ! mDownload.mIsDone && ! mIsClosed)
+                            mLock.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                    available = mDownload.mDownloaded;
+                    if (position >= available) {
+                        if (mDownload.mError != null)
+                            throw mDownload.mError;
+                        return -1; // End of stream
+                    }
+                }
+            }
+            if (available < 0) {
+                InputStream in = openRange(position);
+                if (in != null) {
+                    int count = in.read(buffer, offset, size);
+                    if (count > 0)
+                        mRangePosition += count;
+                    return count;
+                }
+                return readAt(position, buffer, offset, size); // Wait instead
+            }
+            closeRange(); // The download caught up
+            mIn.seek(position);
+            return mIn.read(buffer, offset, (int) Math.min(size, available - position));
+        }
+
+        // Open or continue a Range request at position
+        // Returns null if the server doesn't support ranges
+        private synchronized InputStream openRange(long position) throws IOException {
+            if (mRange != null && mRangePosition == position)
+                return mRangeIn;
+            closeRange();
+            HttpURLConnection connection = (HttpURLConnection) new URL(mDownload.mUrl).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestProperty("Range", "bytes=" + position + "-");
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                    Log.v(TAG, "Range requests not supported for " + mDownload.mUrl);
+                    connection.disconnect();
+                    synchronized (mLock) {
+                        mCanSeek = false;
+                    }
+                    return null;
+                }
+                mRangeIn = connection.getInputStream();
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+            mRange = connection;
+            mRangePosition = position;
+            return mRangeIn;
+        }
+
+        private synchronized void closeRange() {
+            if (mRange != null) {
+                mRange.disconnect();
+                mRange = null;
+                mRangeIn = null;
+            }
+        }
+
+        @Override
+        public long getSize() throws IOException {
+            synchronized (mLock) {
+                try {
+                    while (! mDownload.mHasLength && ! mIsClosed)
+                        mLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                if (mDownload.mError != null && mDownload.mDownloaded == 0)
+                    throw mDownload.mError;
+                return mDownload.mLength;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (mLock) {
+                if (mIsClosed)
+                    return;
+                mIsClosed = true;
+            }
+            closeRange();
+            mDownload.close();
+            mIn.close();
+        }
+    }
+}
@@ -82,13 +82,23 @@ public class BinIndexer extends StringIndexer {
     protected static int[] makeBins(Cursor cursor, int sortedColumnIndex, int sectionCount) {
         int[] bins = new int[sectionCount];
         // Get min/max
-        int pos = cursor.getPosition();
-        if (! cursor.moveToFirst())
-            return new int[0];
-        double first = cursor.getDouble(sortedColumnIndex);
-        cursor.moveToLast();
-        double last = cursor.getDouble(sortedColumnIndex);
-        cursor.moveToPosition(pos);
+        double first, last;
+        SectionTable table = SectionTable.fromCursor(cursor, sortedColumnIndex);
+        if (table != null) {
+            if (table.getRunCount() == 0)
+                return new int[0];
+            first = parseDouble(table.getLabel(0));
+            last = parseDouble(table.getLabel(table.getRunCount() - 1));
+        }
+        else {
+            int pos = cursor.getPosition();
+            if (! cursor.moveToFirst())
+                return new int[0];
+            first = cursor.getDouble(sortedColumnIndex);
+            cursor.moveToLast();
+            last = cursor.getDouble(sortedColumnIndex);
+            cursor.moveToPosition(pos);
+        }
         // Calculate bin size and first bin
         // All numbers will be rounded to the binSize order of magnitude
         // For example: if min = 40, max = 2000, and sectionCount = 4
@@ -102,4 +112,15 @@ public class BinIndexer extends StringIndexer {
             bins[i] = (int)(start + binSize * i);
         return bins;
     }
+
+    // Parse a value the way Cursor.getDouble() does (null or non-numeric is 0)
+    private static double parseDouble(String value) {
+        if (value == null)
+            return 0;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
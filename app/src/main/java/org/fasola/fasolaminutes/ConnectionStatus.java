@@ -25,6 +25,12 @@ public class ConnectionStatus {
     private static boolean mAllowStreaming;
     private static final String PREFERENCES_FILE = "PlaybackPreferences";
     private static final String STREAMING_KEY = "allowStreaming";
+    private static final String PREFETCH_WIFI_KEY = "prefetchWifi";
+    private static final String PREFETCH_CELLULAR_KEY = "prefetchCellular";
+
+    // Default number of upcoming songs to download ahead of time
+    public static final int DEFAULT_PREFETCH_WIFI = 3;
+    public static final int DEFAULT_PREFETCH_CELLULAR = 1;
 
     // Connection enums
     public static final int CAN_PLAY = 0;
@@ -64,6 +70,39 @@ public class ConnectionStatus {
             return NO_CONNECTION;
     }
 
+    /**
+     * Returns the number of upcoming songs to prefetch on the current connection.
+     *
+     * <p>This is 0 unless {@link #getPlayStatus} allows playback, and uses the cellular limit
+     * on metered networks (see {@link #setPrefetchCount}).
+     */
+    public static int getPrefetchCount(Context context) {
+        if (getPlayStatus(context) != CAN_PLAY)
+            return 0;
+        final SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm.getActiveNetworkInfo();
+        if (network == null || ! network.isConnected())
+            return 0;
+        // Wifi, ethernet, and other networks that aren't billed by the byte
+        if (! cm.isActiveNetworkMetered())
+            return preferences.getInt(PREFETCH_WIFI_KEY, DEFAULT_PREFETCH_WIFI);
+        return preferences.getInt(PREFETCH_CELLULAR_KEY, DEFAULT_PREFETCH_CELLULAR);
+    }
+
+    /**
+     * Sets the number of upcoming songs to prefetch.
+     *
+     * @param wifi count on unmetered networks (e.g. wifi or ethernet)
+     * @param cellular count on metered networks (if streaming is allowed)
+     */
+    public static void setPrefetchCount(Context context, int wifi, int cellular) {
+        context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE).edit()
+                .putInt(PREFETCH_WIFI_KEY, wifi)
+                .putInt(PREFETCH_CELLULAR_KEY, cellular)
+                .apply();
+    }
+
     /**
      * Prompts the user to allow streaming without wifi.
      *
@@ -10,7 +10,11 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.util.Pair;
 import androidx.fragment.app.ListFragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -75,6 +79,25 @@ public class CursorListFragment extends ListFragment
     protected LetterIndexer mDeferredIndexer;
     protected String[] mSectionLabels;
     protected boolean mUseFastScroll = false;
+    protected int mLoaderId;
+    protected boolean mUsePaging = false;
+
+    // Search-as-you-type waits until typing pauses
+    public final static int DEFAULT_SEARCH_DELAY = 300; // ms
+    protected int mSearchDelay = DEFAULT_SEARCH_DELAY;
+    private final Handler mSearchHandler = new Handler(Looper.getMainLooper());
+    private Runnable mPendingSearch;
+
+    // Ids of the last search results, used to narrow the next search when the search term
+    // is extended (e.g. "Ama" -> "Amaz")
+    public final static int MAX_NARROW_IDS = 512;
+    protected boolean mNarrowSearch = true;
+    private long[] mNarrowIds;
+    private String mNarrowTerm;
+    private SQL.Query mNarrowQuery; // mOriginalQuery for the results
+
+    // Original query and search term for onLoadSearch() in the loader
+    private volatile Pair<SQL.Query, String> mLoadSearch;
 
     private static final String BUNDLE_SEARCH = "SEARCH_TERM";
     private static final String BUNDLE_SORT = "SORT_ID";
@@ -93,7 +116,26 @@ public class CursorListFragment extends ListFragment
             mListState = savedInstanceState.getParcelable(LIST_STATE);
         }
         // Setup the cursor loader
-        mMinutesLoader = new MinutesLoader(this);
+        mMinutesLoader = new MinutesLoader(this) {
+            @Override
+            protected Cursor onLoadInBackground(MinutesDb db, CancellationSignal cancellationSignal) {
+                SQL.Query query = getQuery();
+                Pair<SQL.Query, String> search = mLoadSearch;
+                if (search != null) {
+                    SQL.Query searchQuery = onLoadSearch(search.first.copy(), search.second);
+                    if (searchQuery != null)
+                        query = searchQuery;
+                }
+                if (mUsePaging) {
+                    Cursor cursor = PagedCursor.create(db, query, cancellationSignal, getQueryArgs());
+                    if (cursor != null)
+                        return cursor;
+                }
+                if (query != getQuery())
+                    return QueryCache.getInstance().query(db, query, cancellationSignal, getQueryArgs());
+                return super.onLoadInBackground(db, cancellationSignal);
+            }
+        };
     }
 
     @Override
@@ -122,8 +164,10 @@ public class CursorListFragment extends ListFragment
             }
         });
         // Start loading the cursor in the background
-        if (mMinutesLoader.hasQuery())
-            getLoaderManager().initLoader(mMinutesLoader.getQuery().toString().hashCode(), null, mMinutesLoader);
+        if (mMinutesLoader.hasQuery()) {
+            mLoaderId = mMinutesLoader.getQuery().compile().hashCode();
+            getLoaderManager().initLoader(mLoaderId, null, mMinutesLoader);
+        }
     }
 
     // Subclasses that want to override the default layout should provide a ViewStub with
@@ -181,6 +225,17 @@ public class CursorListFragment extends ListFragment
         getListAdapter().setViewResource(layoutId);
     }
 
+    /**
+     * Loads list rows a page at a time (for long lists).
+     *
+     * <p>The query must {@code SELECT} a unique id column.
+     *
+     * @param usePaging true to use a {@link PagedCursor}
+     */
+    public void setPaging(boolean usePaging) {
+        mUsePaging = usePaging;
+    }
+
     /**
      * Sets an Activity to start when a list item is clicked.
      *
@@ -207,8 +262,18 @@ public class CursorListFragment extends ListFragment
      * @see #setItemLayout(int)
      */
     public void setQuery(SQL.Query query, String... queryArgs) {
+        mLoadSearch = null;
+        startQuery(query, queryArgs);
+    }
+
+    private void startQuery(SQL.Query query, String... queryArgs) {
         mMinutesLoader.setQuery(query, queryArgs);
-        getLoaderManager().initLoader(mMinutesLoader.getQuery().toString().hashCode(), null, mMinutesLoader);
+        int loaderId = mMinutesLoader.getQuery().compile().hashCode();
+        // Abort the previous query if it hasn't finished (e.g. while typing a search)
+        if (loaderId != mLoaderId)
+            MinutesLoader.cancelPending(getLoaderManager(), mLoaderId);
+        mLoaderId = loaderId;
+        getLoaderManager().initLoader(loaderId, null, mMinutesLoader);
     }
 
     /**
@@ -218,11 +283,49 @@ public class CursorListFragment extends ListFragment
      * @see #onUpdateSearch
      */
     public void setSearch(String searchTerm) {
+        cancelPendingSearch();
         mSearchTerm = searchTerm;
         if (searchTerm.isEmpty())
             updateQuery();
-        else
-            setQuery(onUpdateSearch(mOriginalQuery.copy(), searchTerm));
+        else {
+            SQL.Query query = narrowSearch(onUpdateSearch(mOriginalQuery.copy(), searchTerm),
+                                           searchTerm);
+            mLoadSearch = Pair.create(mOriginalQuery, searchTerm);
+            startQuery(query);
+        }
+    }
+
+    // Limit a search to the last results if the search term has only been extended.
+    // Requires that onUpdateSearch() never matches more rows for a longer search term.
+    private SQL.Query narrowSearch(SQL.Query query, String searchTerm) {
+        if (! mNarrowSearch || mNarrowIds == null || mNarrowQuery != mOriginalQuery ||
+                ! searchTerm.startsWith(mNarrowTerm) || searchTerm.equals(mNarrowTerm))
+            return query;
+        Object idColumn = query.getColumn("_id");
+        if (idColumn == null)
+            return query;
+        Long[] ids = new Long[mNarrowIds.length];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = mNarrowIds[i];
+        return query.where(idColumn, "IN", ids);
+    }
+
+    // Save ids from search results for narrowSearch()
+    private void saveSearchResults(Cursor cursor) {
+        mNarrowIds = null;
+        int count = cursor.getCount();
+        // narrowSearch() filters on _id, so skip queries without one
+        int idIndex = cursor.getColumnIndex("_id");
+        if (mSearchTerm.isEmpty() || count > MAX_NARROW_IDS || idIndex == -1)
+            return;
+        long[] ids = new long[count];
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext())
+            ids[cursor.getPosition()] = cursor.getLong(idIndex);
+        cursor.moveToPosition(-1);
+        mNarrowIds = ids;
+        mNarrowTerm = mSearchTerm;
+        mNarrowQuery = mOriginalQuery;
     }
 
     /** Gets the search term. */
@@ -230,6 +333,57 @@ public class CursorListFragment extends ListFragment
         return mSearchTerm;
     }
 
+    /**
+     * Sets a new search term after the search delay, replacing any pending search.
+     *
+     * @param searchTerm the search string
+     * @see #setSearchDelay(int)
+     */
+    public void postSearch(final String searchTerm) {
+        cancelPendingSearch();
+        // Clearing the search should be immediate
+        if (mSearchDelay <= 0 || searchTerm.isEmpty()) {
+            setSearch(searchTerm);
+            return;
+        }
+        mPendingSearch = new Runnable() {
+            @Override
+            public void run() {
+                mPendingSearch = null;
+                setSearch(searchTerm);
+            }
+        };
+        mSearchHandler.postDelayed(mPendingSearch, mSearchDelay);
+    }
+
+    private void cancelPendingSearch() {
+        if (mPendingSearch != null) {
+            mSearchHandler.removeCallbacks(mPendingSearch);
+            mPendingSearch = null;
+        }
+    }
+
+    /**
+     * Sets whether a search can be limited to the previous results when the search term
+     * is extended.
+     *
+     * <p>Disable if {@link #onUpdateSearch} can match more rows for a longer search term.
+     *
+     * @param narrowSearch true to narrow searches (default)
+     */
+    public void setNarrowSearch(boolean narrowSearch) {
+        mNarrowSearch = narrowSearch;
+    }
+
+    /**
+     * Sets how long to wait after typing stops before searching.
+     *
+     * @param delay delay in milliseconds (0 to search on every keystroke)
+     */
+    public void setSearchDelay(int delay) {
+        mSearchDelay = delay;
+    }
+
     /**
      * Override to respond to search events.
      *
@@ -241,6 +395,21 @@ public class CursorListFragment extends ListFragment
         return query;
     }
 
+    /**
+     * Override to build the search query in the loader's background thread, e.g. from an
+     * in-memory index that is too slow to search on the UI thread.
+     *
+     * <p>The query from {@link #onUpdateSearch} still identifies the loader, and it is used
+     * if this returns {@code null}.
+     *
+     * @param query a copy of the existing query
+     * @param searchTerm search term (will not be empty)
+     * @return query that incorporates the search term, or {@code null}
+     */
+    protected SQL.Query onLoadSearch(SQL.Query query, String searchTerm) {
+        return null;
+    }
+
     /** Gets the filter state (if any) */
     public Bundle getFilterState() {
         return mFilterState;
@@ -385,14 +554,15 @@ public class CursorListFragment extends ListFragment
             @Override
             public boolean onQueryTextSubmit(String query) {
                 searchView.clearFocus(); // Hide the keyboard
-                onQueryTextChange(query);
+                // Don't wait for the search delay
+                setSearch(query.replace('\'', '\u2019'));
                 return true;
             }
 
             @Override
             public boolean onQueryTextChange(String query) {
                 // db uses curly apostrophes
-                setSearch(query.replace('\'', '\u2019'));
+                postSearch(query.replace('\'', '\u2019'));
                 return true;
             }
         });
@@ -601,6 +771,7 @@ public class CursorListFragment extends ListFragment
         } else {
             adapter.setIndexer(null);
         }
+        saveSearchResults(cursor);
         // Setup the CursorAdapter
         // According to the docs, the LoaderManager owns the cursors, and we shouldn't close them.
         // changeCursor() closes the cursor, while swapCursor() doesn't . . . but the only way to
@@ -643,6 +814,7 @@ public class CursorListFragment extends ListFragment
 
     @Override
     public void onDestroy() {
+        cancelPendingSearch();
         if (getView() != null) {
             getListAdapter().changeCursor(null);
             setListAdapter(null);
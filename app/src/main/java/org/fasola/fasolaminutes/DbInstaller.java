@@ -0,0 +1,364 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Installs minutes.db from a compressed asset.
+ *
+ * <p>{@code minutes_update.py} writes {@code databases/minutes.db.gz} and its SHA-256 checksum
+ * ({@code databases/minutes.db.sha256}). The database is decompressed straight to a temp file
+ * next to the database path, checked, stamped with {@link C#DB_VERSION}, and renamed into
+ * place, so that {@code SQLiteAssetHelper} finds a current database and skips its own copy.
+ *
+ * <p>If there is no compressed asset (e.g. a development build with a plain minutes.db), or
+ * the install fails twice (e.g. out of storage), nothing is installed and
+ * {@code SQLiteAssetHelper} copies the plain asset, which is always kept in the APK.
+ *
+ * <p>Existing databases are upgraded incrementally when there is a chain of upgrade scripts
+ * ({@code databases/minutes.db_upgrade_<from>-<to>.sql}, written by {@code minutes_update.py})
+ * from the installed version to {@link C#DB_VERSION}. A full install is only the fallback.
+ */
+public class DbInstaller {
+    private static final String TAG = "DbInstaller";
+    private static final String ASSET_PATH = "databases/" + C.DB_NAME;
+    public static final String COMPRESSED_ASSET = ASSET_PATH + ".gz";
+    public static final String CHECKSUM_ASSET = ASSET_PATH + ".sha256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int USER_VERSION_OFFSET = 60; // In the SQLite file header
+    private static final int INSTALL_ATTEMPTS = 2;
+
+    protected DbInstaller() {
+    }
+
+    /**
+     * Installs the database if it is missing or older than {@link C#DB_VERSION}.
+     *
+     * <p>Call before opening the database (this can take a while; don't call on the UI thread).
+     *
+     * @param context context
+     * @return true if the database was installed
+     */
+    public static boolean installIfNeeded(Context context) {
+        File dbFile = context.getDatabasePath(C.DB_NAME);
+        int version = getInstalledVersion(dbFile);
+        if (version >= C.DB_VERSION)
+            return false;
+        long start = System.nanoTime();
+        if (version > 0 && upgrade(context.getAssets(), dbFile, version)) {
+            Log.i(TAG, "Upgraded " + C.DB_NAME + " from version " + version + " in " +
+                       (System.nanoTime() - start) / 1000000 + "ms");
+            return true;
+        }
+        File tmpFile = new File(dbFile.getPath() + ".tmp");
+        for (int attempt = 1; attempt <= INSTALL_ATTEMPTS; attempt++) {
+            try {
+                if (! install(context.getAssets(), dbFile, tmpFile))
+                    return false;
+                Log.i(TAG, "Installed " + C.DB_NAME + " in " +
+                           (System.nanoTime() - start) / 1000000 + "ms");
+                return true;
+            } catch (IOException | SQLException e) {
+                Log.e(TAG, "Error installing " + COMPRESSED_ASSET +
+                           " (attempt " + attempt + ")", e);
+            } finally {
+                tmpFile.delete();
+            }
+        }
+        Log.w(TAG, "Falling back to copying " + ASSET_PATH);
+        return false;
+    }
+
+    // Read user_version from the file header without opening the database
+    private static int getInstalledVersion(File dbFile) {
+        if (! dbFile.exists())
+            return 0;
+        try {
+            RandomAccessFile file = new RandomAccessFile(dbFile, "r");
+            try {
+                ByteBuffer header = ByteBuffer.allocate(4);
+                if (file.getChannel().read(header, USER_VERSION_OFFSET) < 4)
+                    return 0;
+                header.flip();
+                return header.getInt(); // Big-endian
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static boolean install(AssetManager assets, File dbFile, File tmpFile)
+            throws IOException {
+        InputStream asset;
+        try {
+            asset = assets.open(COMPRESSED_ASSET, AssetManager.ACCESS_STREAMING);
+        } catch (FileNotFoundException e) {
+            return false; // Leave it to SQLiteAssetHelper
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        dbFile.getParentFile().mkdirs();
+        // Decompress
+        ReadableByteChannel in = Channels.newChannel(new DigestInputStream(
+                new GZIPInputStream(asset, BUFFER_SIZE), digest));
+        try {
+            FileChannel out = new FileOutputStream(tmpFile).getChannel();
+            try {
+                long position = 0;
+                long count;
+                while ((count = out.transferFrom(in, position, CHUNK_SIZE)) > 0)
+                    position += count;
+                out.force(true);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+        // Check
+        String expected = readChecksum(assets);
+        String actual = toHex(digest.digest());
+        if (expected != null && ! expected.equalsIgnoreCase(actual))
+            throw new IOException("Checksum mismatch: expected " + expected + ", got " + actual);
+        // Stamp the version so SQLiteAssetHelper doesn't copy over it
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(tmpFile.getPath(), null,
+                                                        SQLiteDatabase.OPEN_READWRITE);
+        try {
+            db.setVersion(C.DB_VERSION);
+        } finally {
+            db.close();
+        }
+        // Replace the old database (rename replaces it atomically, so a failure leaves it intact),
+        // then remove its journals
+        if (! tmpFile.renameTo(dbFile))
+            throw new IOException("Unable to rename " + tmpFile + " to " + dbFile);
+        for (String suffix : new String[] {"-journal", "-wal", "-shm"})
+            new File(dbFile.getPath() + suffix).delete();
+        return true;
+    }
+
+    // Incremental upgrades
+    // ------------------------------------------------------------------------------------------
+    // Apply upgrade scripts in a single transaction (returns false to fall back to a full install)
+    private static boolean upgrade(AssetManager assets, File dbFile, int version) {
+        List<String> scripts = findUpgradePath(assets, version);
+        if (scripts == null)
+            return false;
+        SQLiteDatabase db;
+        try {
+            db = SQLiteDatabase.openDatabase(dbFile.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Error opening " + dbFile, e);
+            return false;
+        }
+        try {
+            db.beginTransaction();
+            try {
+                for (String script : scripts)
+                    execScript(db, assets, script);
+                MinutesDb.DerivedStats.invalidate(db);
+                db.setVersion(C.DB_VERSION);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        } catch (IOException | SQLException e) {
+            Log.e(TAG, "Error upgrading " + C.DB_NAME + " from version " + version, e);
+            return false;
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Finds upgrade scripts from a version to {@link C#DB_VERSION}.
+     *
+     * <p>Like {@code SQLiteAssetHelper}, each step uses the script that skips the most versions.
+     *
+     * @param assets AssetManager
+     * @param version installed version
+     * @return asset paths in order, or {@code null} if there is no complete path
+     */
+    static List<String> findUpgradePath(AssetManager assets, int version) {
+        String[] files;
+        try {
+            files = assets.list("databases");
+        } catch (IOException e) {
+            return null;
+        }
+        if (files == null)
+            return null;
+        // Map each from version to the highest to version
+        Map<Integer, Integer> steps = new HashMap<>();
+        for (String file : files) {
+            Matcher m = UPGRADE_PATTERN.matcher(file);
+            if (! m.matches())
+                continue;
+            int from = Integer.parseInt(m.group(1));
+            int to = Integer.parseInt(m.group(2));
+            if (to <= from || to > C.DB_VERSION)
+                continue;
+            Integer best = steps.get(from);
+            if (best == null || to > best)
+                steps.put(from, to);
+        }
+        List<String> path = new ArrayList<>();
+        while (version < C.DB_VERSION) {
+            Integer to = steps.get(version);
+            if (to == null)
+                return null;
+            path.add(ASSET_PATH + "_upgrade_" + version + "-" + to + ".sql");
+            version = to;
+        }
+        return path;
+    }
+
+    private static final Pattern UPGRADE_PATTERN =
+            Pattern.compile(Pattern.quote(C.DB_NAME) + "_upgrade_(\\d+)-(\\d+)\\.sql");
+
+    // Execute each statement as soon as it is read, so the script is never held in memory
+    private static void execScript(SQLiteDatabase db, AssetManager assets, String path)
+            throws IOException {
+        StatementReader reader = new StatementReader(new BufferedReader(new InputStreamReader(
+                assets.open(path, AssetManager.ACCESS_STREAMING), "UTF-8"), BUFFER_SIZE));
+        try {
+            String statement;
+            while ((statement = reader.next()) != null)
+                db.execSQL(statement);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads statements from a script, splitting on semicolons outside of quotes and comments.
+     *
+     * <p>({@code SQLiteAssetHelper}'s splitter ignores single quotes, which breaks on minutes
+     * text that contains semicolons.)
+     */
+    static class StatementReader {
+        private final BufferedReader mReader;
+        private final StringBuilder mStatement = new StringBuilder();
+
+        StatementReader(BufferedReader reader) {
+            mReader = reader;
+        }
+
+        /**
+         * Reads the next statement.
+         *
+         * @return statement (without the trailing semicolon), or {@code null} at the end
+         */
+        String next() throws IOException {
+            char quote = 0;
+            int c;
+            while ((c = mReader.read()) != -1) {
+                if (quote != 0) {
+                    // Doubled quotes are escapes, which this handles as two quoted strings
+                    if (c == quote)
+                        quote = 0;
+                }
+                else if (c == '\'' || c == '"') {
+                    quote = (char) c;
+                }
+                else if (c == '-') {
+                    mReader.mark(1);
+                    if (mReader.read() == '-') {
+                        // Skip to the end of the line
+                        mReader.readLine();
+                        mStatement.append('\n');
+                        continue;
+                    }
+                    mReader.reset();
+                }
+                else if (c == ';') {
+                    String sql = takeStatement();
+                    if (sql != null)
+                        return sql;
+                    continue;
+                }
+                mStatement.append((char) c);
+            }
+            return takeStatement();
+        }
+
+        void close() throws IOException {
+            mReader.close();
+        }
+
+        private String takeStatement() {
+            String sql = mStatement.toString().trim();
+            mStatement.setLength(0);
+            return sql.isEmpty() ? null : sql;
+        }
+    }
+
+    // Checksum asset: hex digest, optionally followed by a filename (sha256sum format)
+    private static String readChecksum(AssetManager assets) throws IOException {
+        InputStream in;
+        try {
+            in = assets.open(CHECKSUM_ASSET);
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "Missing " + CHECKSUM_ASSET);
+            return null;
+        }
+        try {
+            StringBuilder text = new StringBuilder();
+            byte[] buffer = new byte[256];
+            int count;
+            while ((count = in.read(buffer)) > 0)
+                text.append(new String(buffer, 0, count, "US-ASCII"));
+            String[] parts = text.toString().trim().split("\\s+");
+            return parts.length > 0 && ! parts[0].isEmpty() ? parts[0] : null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
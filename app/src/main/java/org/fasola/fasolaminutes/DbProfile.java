@@ -0,0 +1,269 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-connection SQLite settings (PRAGMAs) for the read-only minutes database.
+ *
+ * <p>The database is only read after it is installed, so pages can be read straight from a
+ * memory map ({@code mmap_size}) instead of being copied into SQLite's page cache, and
+ * temporary b-trees (e.g. for {@code ORDER BY} and {@code GROUP BY}) stay in memory.
+ *
+ * <p>Whether mmap helps (or is even allowed by the platform's SQLite build) and how large the
+ * page cache should be depend on the device, so {@link #probeInBackground} times a standard
+ * set of queries with each candidate profile once the app is idle, and stores the fastest one
+ * if it clearly beats {@link #DEFAULT}. Until then, {@link #DEFAULT} is used.
+ */
+public class DbProfile {
+    private static final String TAG = "DbProfile";
+    private static final String PREFERENCES_FILE = "DbProfile";
+    private static final String VERSION_KEY = "dbVersion";
+    private static final String MMAP_KEY = "mmapSize";
+    private static final String CACHE_KEY = "cacheSize";
+    private static final long PROBE_DELAY_MS = 30 * 1000; // Let startup queries finish first
+    private static final int PROBE_RUNS = 5;
+    private static final double PROBE_MARGIN = 0.1; // Fraction of the default profile's time
+
+    /** SQLite defaults (no mmap, 2MB cache) with in-memory temp storage */
+    public static final DbProfile DEFAULT = new DbProfile(0, -2000);
+
+    /** mmap_size in bytes (0 to disable) */
+    public final long mmapSize;
+    /** cache_size (negative values are KiB) */
+    public final int cacheSize;
+
+    public DbProfile(long mmapSize, int cacheSize) {
+        this.mmapSize = mmapSize;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Applies the profile to a connection.
+     *
+     * @param db connection
+     * @param queryOnly true to reject changes on this connection ({@code query_only})
+     */
+    public void apply(SQLiteDatabase db, boolean queryOnly) {
+        try {
+            pragma(db, "mmap_size = " + mmapSize);
+            pragma(db, "cache_size = " + cacheSize);
+            pragma(db, "temp_store = MEMORY");
+            if (queryOnly)
+                pragma(db, "query_only = 1");
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Error applying " + this, e);
+        }
+    }
+
+    // Run a PRAGMA (some PRAGMAs return a row, so execSQL can't be used)
+    private static void pragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Current mmap_size for a connection (0 if mmap isn't supported)
+    private static long getMmapSize(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA mmap_size", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (! (o instanceof DbProfile))
+            return false;
+        DbProfile other = (DbProfile) o;
+        return mmapSize == other.mmapSize && cacheSize == other.cacheSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (mmapSize ^ (mmapSize >>> 32)) + cacheSize;
+    }
+
+    @Override
+    public String toString() {
+        return TAG + "(mmap_size=" + mmapSize + ", cache_size=" + cacheSize + ")";
+    }
+
+    // Stored profile
+    // ------------------------------------------------------------------------------------------
+    /**
+     * Loads the probed profile for the current database version.
+     *
+     * @param context context
+     * @return stored profile, or {@code null} if the device hasn't been probed
+     */
+    public static DbProfile load(Context context) {
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE);
+        if (preferences.getInt(VERSION_KEY, -1) != C.DB_VERSION)
+            return null;
+        return new DbProfile(preferences.getLong(MMAP_KEY, DEFAULT.mmapSize),
+                             preferences.getInt(CACHE_KEY, DEFAULT.cacheSize));
+    }
+
+    private void save(Context context) {
+        context.getSharedPreferences(PREFERENCES_FILE, Context.MODE_PRIVATE).edit()
+                .putInt(VERSION_KEY, C.DB_VERSION)
+                .putLong(MMAP_KEY, mmapSize)
+                .putInt(CACHE_KEY, cacheSize)
+                .apply();
+    }
+
+    // Auto-probe
+    // ------------------------------------------------------------------------------------------
+    /** Called with the best profile when probing is finished. */
+    public interface ProbeListener {
+        void onProbeFinished(DbProfile profile);
+    }
+
+    /**
+     * Times the standard query set with each candidate profile on a background thread, then
+     * stores the best profile.
+     *
+     * <p>Timings are skewed by other work, so the probe waits until the main thread is idle
+     * after a delay.
+     *
+     * @param context context
+     * @param path database path
+     * @param listener called on the background thread with the best profile
+     */
+    public static void probeInBackground(Context context, final String path,
+                                         final ProbeListener listener) {
+        final Context appContext = context.getApplicationContext();
+        final Runnable probe = new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    DbProfile profile = probe(path);
+                    profile.save(appContext);
+                    listener.onProbeFinished(profile);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error probing database settings", e);
+                }
+            }
+        };
+        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        new Thread(probe, TAG).start();
+                        return false; // Only once
+                    }
+                });
+            }
+        }, PROBE_DELAY_MS);
+    }
+
+    // Candidate profiles: with and without mapping the whole file, and a small or large cache
+    private static List<DbProfile> getCandidates(String path, boolean hasMmap) {
+        List<DbProfile> candidates = new ArrayList<>();
+        long fileSize = new File(path).length();
+        long mapSize = ((fileSize >> 20) + 1) << 20; // Round up to the next MB
+        for (int cacheSize : new int[] {DEFAULT.cacheSize, -8000}) {
+            candidates.add(new DbProfile(0, cacheSize));
+            if (hasMmap)
+                candidates.add(new DbProfile(mapSize, cacheSize));
+        }
+        return candidates;
+    }
+
+    // Queries that read most of the database: leader stats, a lyrics search, and singings
+    private static SQL.Query[] getQuerySet() {
+        return new SQL.Query[] {
+            SQL.select(C.Leader.fullName, C.Leader.songCount, C.Leader.singingCount)
+                    .group(C.Leader.id),
+            SQL.select(C.Song.id).from(C.Song).where(C.Song.lyrics, "LIKE", "%the%"),
+            SQL.select(C.Singing.name, C.Singing.songCount).from(C.Singing),
+        };
+    }
+
+    private static DbProfile probe(String path) {
+        SQL.Query[] queries = getQuerySet();
+        DbProfile best = DEFAULT;
+        long bestTime = Long.MAX_VALUE;
+        boolean hasMmap = false;
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            pragma(db, "mmap_size = 1048576");
+            hasMmap = getMmapSize(db) > 0;
+        } finally {
+            db.close();
+        }
+        long defaultTime = Long.MAX_VALUE;
+        for (DbProfile profile : getCandidates(path, hasMmap)) {
+            // Fresh connection, so cached pages from the last profile aren't counted
+            db = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+            try {
+                profile.apply(db, true);
+                time(db, queries); // Warm up (e.g. the OS file cache)
+                // Median of several runs, so one slow run (e.g. a GC) doesn't decide
+                long[] times = new long[PROBE_RUNS];
+                for (int i = 0; i < PROBE_RUNS; i++)
+                    times[i] = time(db, queries);
+                Arrays.sort(times);
+                long time = times[PROBE_RUNS / 2];
+                Log.v(TAG, profile + ": " + time / 1000000 + "ms");
+                if (profile.equals(DEFAULT))
+                    defaultTime = time;
+                else if (time < bestTime) {
+                    best = profile;
+                    bestTime = time;
+                }
+            } finally {
+                db.close();
+            }
+        }
+        // Keep the default unless another profile is clearly faster
+        if (bestTime > defaultTime * (1 - PROBE_MARGIN))
+            best = DEFAULT;
+        Log.i(TAG, "Using " + best);
+        return best;
+    }
+
+    // Run each query and read all rows
+    private static long time(SQLiteDatabase db, SQL.Query[] queries) {
+        long start = System.nanoTime();
+        for (SQL.Query query : queries) {
+            SQL.Compiled compiled = query.compile();
+            Cursor cursor = db.rawQuery(compiled.getSql(), compiled.bindArgs());
+            try {
+                while (cursor.moveToNext())
+                    cursor.getString(0);
+            } finally {
+                cursor.close();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import java.util.regex.Pattern;
+
+/**
+ * Fuzzy name keys and bounded edit distance for typo-tolerant name matching.
+ *
+ * <p>{@link #normalize} is a port of the replacement steps in {@code fuzzy_name.py}, which
+ * finds typos and alternate spellings in the leaders table. Names that normalize to the same
+ * key are probably the same name, and nearby keys are probably typos.
+ */
+public class FuzzyName {
+    protected FuzzyName() {
+    }
+
+    // Replacement steps, in order (see STEPS in fuzzy_name.py)
+    // Each step is more likely to combine different names than the previous step
+    private static final Pattern[] PATTERNS = {
+        Pattern.compile("(\\S)I"), // Uppercase I -> Lowercase L
+        null, // Lowercase
+        Pattern.compile("\\.(\\S)"), // Add space after "." for abbreviations
+        Pattern.compile("\u2019"), // Smart apostrophes -> straight apostrophes
+        Pattern.compile("-"), // Hyphens -> spaces
+        Pattern.compile("\\p{Punct}"), // Remove punctuation
+        Pattern.compile("[eh]\\b"), // Remove trailing E and H
+        Pattern.compile("es\\b"), // Remove trailing ES
+        Pattern.compile("(.)\\1+"), // Double letters -> single letters
+        Pattern.compile("ey|ye"), // ey/ye -> y
+        Pattern.compile("ei|ie|y"), // ei/ie/y -> e
+        Pattern.compile("([aeiouy])[aeiouy]+"), // Replace multiple vowels
+        Pattern.compile("[aeiouy]"), // Wildcard vowels
+    };
+    private static final String[] REPLACEMENTS = {
+        "$1l", null, ". $1", "'", " ", "", "", "s", "$1", "y", "e", "$1", "*",
+    };
+
+    /**
+     * Normalizes a name into a fuzzy key.
+     *
+     * @param name leader name
+     * @return key (e.g. "J. Smith" -> "j sm*t")
+     */
+    public static String normalize(String name) {
+        for (int i = 0; i < PATTERNS.length; i++) {
+            if (PATTERNS[i] == null)
+                name = name.toLowerCase();
+            else
+                name = PATTERNS[i].matcher(name).replaceAll(REPLACEMENTS[i]);
+        }
+        return name.trim();
+    }
+
+    /**
+     * Returns the maximum edit distance to allow for a key.
+     *
+     * <p>Short keys match too many names with typos, so they must match exactly.
+     *
+     * @param key normalized key
+     * @return number of allowed edits
+     */
+    public static int maxDistance(String key) {
+        if (key.length() < 4)
+            return 0;
+        else if (key.length() < 8)
+            return 1;
+        return 2;
+    }
+
+    /**
+     * Computes the edit distance between a search key and the closest prefix of any word
+     * in a name key, up to a maximum.
+     *
+     * <p>Prefixes are used so that partially-typed names match (e.g. "j smt" matches "j sm*t").
+     *
+     * @param search normalized search key
+     * @param key normalized name key
+     * @param maxDistance maximum distance
+     * @return edit distance, or {@code maxDistance + 1} if greater than {@code maxDistance}
+     */
+    public static int prefixDistance(String search, String key, int maxDistance) {
+        int best = maxDistance + 1;
+        int[] prev = new int[search.length() + 1];
+        int[] cur = new int[search.length() + 1];
+        for (int start = 0; start < key.length(); start++) {
+            // Only compare from the start of words
+            if (start > 0 && key.charAt(start - 1) != ' ')
+                continue;
+            if (key.length() - start < search.length() - maxDistance)
+                break;
+            best = Math.min(best, prefixDistance(search, key, start, maxDistance, prev, cur));
+            if (best == 0)
+                break;
+        }
+        return best;
+    }
+
+    // Levenshtein distance between search and the closest prefix of key.substring(start),
+    // computed one column (key char) at a time and abandoned once it exceeds maxDistance
+    private static int prefixDistance(String search, String key, int start, int maxDistance,
+                                      int[] prev, int[] cur) {
+        int m = search.length();
+        for (int i = 0; i <= m; i++)
+            prev[i] = i;
+        int best = prev[m];
+        int end = Math.min(key.length(), start + m + maxDistance);
+        for (int j = start; j < end && best > 0; j++) {
+            cur[0] = j - start + 1;
+            int colMin = cur[0];
+            char c = key.charAt(j);
+            for (int i = 1; i <= m; i++) {
+                int cost = search.charAt(i - 1) == c ? 0 : 1;
+                cur[i] = Math.min(Math.min(cur[i - 1] + 1, prev[i] + 1), prev[i - 1] + cost);
+                colMin = Math.min(colMin, cur[i]);
+            }
+            best = Math.min(best, cur[m]);
+            if (colMin > maxDistance)
+                break;
+            int[] tmp = prev;
+            prev = cur;
+            cur = tmp;
+        }
+        return Math.min(best, maxDistance + 1);
+    }
+}
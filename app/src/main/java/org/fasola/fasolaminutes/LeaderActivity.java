@@ -44,7 +44,7 @@ public class LeaderActivity extends SimpleTabActivity {
                     setTitle(leader.fullName.getString());
                 }
             }
-        });
+        }.setPriority(MinutesLoader.PRIORITY_HEADER));
         // Check for a lead id and switch to All Leads tab
         if (getIntent().getLongExtra(SingingActivity.EXTRA_LEAD_ID, -1) > -1) {
             int position = mPagerAdapter.getFragmentIndex(LeaderLeadsFragment.class);
@@ -125,7 +125,7 @@ public class LeaderActivity extends SimpleTabActivity {
                         ((TextView) view.findViewById(R.id.entropy)).setText(entropy);
                     }
                 }
-            });
+            }.setPriority(MinutesLoader.PRIORITY_HEADER));
             // Query for BarChart
             final BarChart chart = (BarChart)view.findViewById(R.id.chart);
             chart.setNoDataText("");
@@ -177,7 +177,7 @@ public class LeaderActivity extends SimpleTabActivity {
                     // want to redraw, so we force it here.
                     chart.invalidate();
                 }
-            });
+            }.setPriority(MinutesLoader.PRIORITY_CHART));
         }
     }
 
@@ -0,0 +1,394 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory trigram index of leader names and alternate spellings for substring search,
+ * plus fuzzy keys (see {@link FuzzyName}) for typo-tolerant search.
+ *
+ * <p>The index is built in the background the first time {@link #search} is called.
+ * Until it is ready (or for search terms shorter than a trigram), {@link #search} returns
+ * {@code null} and callers should fall back to a {@code LIKE} query.
+ *
+ * <p>Fuzzy keys are indexed by bigram. A key within {@code d} edits of the search key must
+ * contain one of {@code d + 1} pieces of the search key unchanged, so only keys that contain
+ * every bigram of some piece are compared with {@link FuzzyName#prefixDistance}.
+ *
+ * <p>Searching takes a few milliseconds, so call {@link #search} in the background.
+ */
+public class LeaderNameIndex {
+    private static final String TAG = "LeaderNameIndex";
+
+    // Singleton
+    private static LeaderNameIndex instance = null;
+
+    private LeaderNameIndex() {
+    }
+
+    public static synchronized LeaderNameIndex getInstance() {
+        if (instance == null)
+            instance = new LeaderNameIndex();
+        return instance;
+    }
+
+    private volatile Index mIndex;
+    private boolean mIsBuilding = false;
+
+    /**
+     * Finds leaders with a name or alternate spelling containing the search term, or
+     * with a name that is within a few typos of the search term.
+     *
+     * @param searchTerm substring to search for (case-insensitive)
+     * @return sorted leader ids, or {@code null} if the index can't be used
+     */
+    public int[] search(String searchTerm) {
+        if (searchTerm.length() < 3)
+            return null;
+        Index index = mIndex;
+        if (index == null) {
+            buildInBackground();
+            return null;
+        }
+        return index.search(searchTerm);
+    }
+
+    /** Is the index ready to use? */
+    public boolean isReady() {
+        return mIndex != null;
+    }
+
+    /** Starts building the index on a background thread (if it hasn't been started). */
+    public synchronized void buildInBackground() {
+        if (mIndex != null || mIsBuilding)
+            return;
+        mIsBuilding = true;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Index index = null;
+                try {
+                    index = Index.build(MinutesDb.getInstance());
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error building leader name index", e);
+                }
+                synchronized (LeaderNameIndex.this) {
+                    mIndex = index;
+                    mIsBuilding = false;
+                }
+            }
+        }, TAG).start();
+    }
+
+    // Pack three chars into a trigram key
+    private static long trigram(String str, int i) {
+        return ((long) str.charAt(i) << 32) | ((long) str.charAt(i + 1) << 16) | str.charAt(i + 2);
+    }
+
+    // Pack two chars into a bigram key
+    private static int bigram(String str, int i) {
+        return (str.charAt(i) << 16) | str.charAt(i + 1);
+    }
+
+    // Immutable index data
+    private static class Index {
+        final String[] names; // Lowercase names and alternate spellings
+        final int[] leaderIds; // Leader id for each name
+        final long[] trigrams; // Sorted trigram keys
+        final int[][] postings; // Sorted name indexes for each trigram
+        final String[] fuzzyKeys; // Distinct FuzzyName keys
+        final int[] fuzzyStarts; // Range in fuzzyLeaderIds for each key (plus the end)
+        final int[] fuzzyLeaderIds; // Leader ids, grouped by key
+        final int[] bigrams; // Sorted bigram keys in fuzzyKeys
+        final int[][] bigramPostings; // Sorted fuzzyKeys indexes for each bigram
+
+        Index(String[] names, int[] leaderIds, long[] trigrams, int[][] postings,
+              String[] fuzzyKeys, int[] fuzzyStarts, int[] fuzzyLeaderIds,
+              int[] bigrams, int[][] bigramPostings) {
+            this.names = names;
+            this.leaderIds = leaderIds;
+            this.trigrams = trigrams;
+            this.postings = postings;
+            this.fuzzyKeys = fuzzyKeys;
+            this.fuzzyStarts = fuzzyStarts;
+            this.fuzzyLeaderIds = fuzzyLeaderIds;
+            this.bigrams = bigrams;
+            this.bigramPostings = bigramPostings;
+        }
+
+        static Index build(MinutesDb db) {
+            // Load names
+            List<String> nameList = new ArrayList<>();
+            List<Integer> idList = new ArrayList<>();
+            loadNames(db, SQL.select(C.Leader.id, C.Leader.fullName).from(C.Leader),
+                      nameList, idList);
+            loadNames(db, SQL.select(C.LeaderAlias.leaderId, C.LeaderAlias.alias)
+                             .from(C.LeaderAlias)
+                             .where(C.LeaderAlias.type, "=", "Alternate Spelling"),
+                      nameList, idList);
+            final String[] names = nameList.toArray(new String[nameList.size()]);
+            int[] leaderIds = new int[names.length];
+            for (int i = 0; i < leaderIds.length; i++)
+                leaderIds[i] = idList.get(i);
+            // Sort fuzzy keys
+            final String[] keys = new String[names.length];
+            Integer[] order = new Integer[names.length];
+            for (int i = 0; i < names.length; i++) {
+                keys[i] = FuzzyName.normalize(names[i]);
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return keys[lhs].compareTo(keys[rhs]);
+                }
+            });
+            // Group leaders by distinct key
+            List<String> keyList = new ArrayList<>();
+            int[] fuzzyStarts = new int[names.length + 1];
+            int[] fuzzyLeaderIds = new int[names.length];
+            for (int i = 0; i < names.length; i++) {
+                String key = keys[order[i]];
+                if (keyList.isEmpty() || ! key.equals(keyList.get(keyList.size() - 1))) {
+                    fuzzyStarts[keyList.size()] = i;
+                    keyList.add(key);
+                }
+                fuzzyLeaderIds[i] = leaderIds[order[i]];
+            }
+            fuzzyStarts[keyList.size()] = names.length;
+            String[] fuzzyKeys = keyList.toArray(new String[keyList.size()]);
+            fuzzyStarts = Arrays.copyOf(fuzzyStarts, fuzzyKeys.length + 1);
+            // Bigram postings for fuzzy keys (keys are visited in order, so each list is sorted)
+            Map<Integer, List<Integer>> keyBigrams = new HashMap<>();
+            for (int k = 0; k < fuzzyKeys.length; k++) {
+                for (int j = 0; j + 2 <= fuzzyKeys[k].length(); j++) {
+                    int key = bigram(fuzzyKeys[k], j);
+                    List<Integer> list = keyBigrams.get(key);
+                    if (list == null)
+                        keyBigrams.put(key, list = new ArrayList<>());
+                    if (list.isEmpty() || list.get(list.size() - 1) != k)
+                        list.add(k);
+                }
+            }
+            int[] bigrams = new int[keyBigrams.size()];
+            int nBigrams = 0;
+            for (int key : keyBigrams.keySet())
+                bigrams[nBigrams++] = key;
+            Arrays.sort(bigrams);
+            int[][] bigramPostings = new int[bigrams.length][];
+            for (int b = 0; b < bigrams.length; b++) {
+                List<Integer> list = keyBigrams.get(bigrams[b]);
+                bigramPostings[b] = new int[list.size()];
+                for (int k = 0; k < list.size(); k++)
+                    bigramPostings[b][k] = list.get(k);
+            }
+            // Substring search is case-insensitive
+            for (int i = 0; i < names.length; i++)
+                names[i] = names[i].toLowerCase();
+            // Count names for each trigram (each name counted once per trigram)
+            Map<Long, int[]> counts = new HashMap<>(); // trigram: {count, last name index}
+            for (int i = 0; i < names.length; i++) {
+                for (int j = 0; j + 3 <= names[i].length(); j++) {
+                    long key = trigram(names[i], j);
+                    int[] count = counts.get(key);
+                    if (count == null)
+                        counts.put(key, new int[] {1, i});
+                    else if (count[1] != i) {
+                        count[0]++;
+                        count[1] = i;
+                    }
+                }
+            }
+            // Allocate postings in trigram order
+            long[] trigrams = new long[counts.size()];
+            int n = 0;
+            for (long key : counts.keySet())
+                trigrams[n++] = key;
+            Arrays.sort(trigrams);
+            int[][] postings = new int[trigrams.length][];
+            int[] fill = new int[trigrams.length];
+            for (int t = 0; t < trigrams.length; t++)
+                postings[t] = new int[counts.get(trigrams[t])[0]];
+            // Fill postings (names are visited in order, so each list is sorted)
+            for (int i = 0; i < names.length; i++) {
+                for (int j = 0; j + 3 <= names[i].length(); j++) {
+                    int t = Arrays.binarySearch(trigrams, trigram(names[i], j));
+                    if (fill[t] == 0 || postings[t][fill[t] - 1] != i)
+                        postings[t][fill[t]++] = i;
+                }
+            }
+            Log.v(TAG, "Indexed " + names.length + " names with " + trigrams.length + " trigrams");
+            return new Index(names, leaderIds, trigrams, postings, fuzzyKeys, fuzzyStarts,
+                             fuzzyLeaderIds, bigrams, bigramPostings);
+        }
+
+        private static void loadNames(MinutesDb db, SQL.Query query,
+                                      List<String> names, List<Integer> ids) {
+            Cursor cursor = db.query(query);
+            try {
+                while (cursor.moveToNext()) {
+                    if (cursor.isNull(1))
+                        continue;
+                    ids.add(cursor.getInt(0));
+                    names.add(cursor.getString(1));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // Substring and fuzzy search for a term (at least 3 chars)
+        int[] search(String term) {
+            int[] substringIds = searchSubstring(term.toLowerCase());
+            int[] fuzzyIds = searchFuzzy(term);
+            if (fuzzyIds.length == 0)
+                return substringIds;
+            // Merge sorted ids
+            int[] result = new int[substringIds.length + fuzzyIds.length];
+            int n = 0, i = 0, j = 0;
+            while (i < substringIds.length || j < fuzzyIds.length) {
+                int id;
+                if (j >= fuzzyIds.length || (i < substringIds.length && substringIds[i] < fuzzyIds[j]))
+                    id = substringIds[i++];
+                else
+                    id = fuzzyIds[j++];
+                if (n == 0 || result[n - 1] != id)
+                    result[n++] = id;
+            }
+            return Arrays.copyOf(result, n);
+        }
+
+        // Leaders with a name within FuzzyName.maxDistance() edits of the term
+        int[] searchFuzzy(String term) {
+            String search = FuzzyName.normalize(term);
+            int maxDistance = FuzzyName.maxDistance(search);
+            if (maxDistance == 0)
+                return new int[0]; // Exact matches are found by the substring search
+            int[] result = new int[fuzzyLeaderIds.length];
+            int nResult = 0;
+            for (int k : fuzzyCandidates(search, maxDistance)) {
+                if (FuzzyName.prefixDistance(search, fuzzyKeys[k], maxDistance) <= maxDistance) {
+                    for (int i = fuzzyStarts[k]; i < fuzzyStarts[k + 1]; i++)
+                        result[nResult++] = fuzzyLeaderIds[i];
+                }
+            }
+            return sortUnique(result, nResult);
+        }
+
+        // Keys that contain every bigram of at least one of maxDistance + 1 pieces of search
+        private int[] fuzzyCandidates(String search, int maxDistance) {
+            int nPieces = maxDistance + 1;
+            boolean[] isCandidate = new boolean[fuzzyKeys.length];
+            int nCandidates = 0;
+            for (int p = 0; p < nPieces; p++) {
+                int start = p * search.length() / nPieces;
+                int end = (p + 1) * search.length() / nPieces;
+                if (end - start < 2) {
+                    // Too short to have a bigram: every key is a candidate
+                    int[] all = new int[fuzzyKeys.length];
+                    for (int k = 0; k < all.length; k++)
+                        all[k] = k;
+                    return all;
+                }
+                int[] keys = null;
+                for (int j = start; j + 2 <= end && (keys == null || keys.length > 0); j++) {
+                    int b = Arrays.binarySearch(bigrams, bigram(search, j));
+                    keys = b < 0 ? new int[0] : (keys == null ? bigramPostings[b]
+                                                               : intersect(keys, bigramPostings[b]));
+                }
+                for (int k : keys) {
+                    if (! isCandidate[k]) {
+                        isCandidate[k] = true;
+                        nCandidates++;
+                    }
+                }
+            }
+            int[] candidates = new int[nCandidates];
+            int n = 0;
+            for (int k = 0; k < isCandidate.length; k++)
+                if (isCandidate[k])
+                    candidates[n++] = k;
+            return candidates;
+        }
+
+        // Intersect sorted lists
+        private static int[] intersect(int[] a, int[] b) {
+            int[] result = new int[Math.min(a.length, b.length)];
+            int n = 0, i = 0, j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j])
+                    i++;
+                else if (a[i] > b[j])
+                    j++;
+                else {
+                    result[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, n);
+        }
+
+        // Leaders with a name containing the lowercase term
+        int[] searchSubstring(String term) {
+            // Find the posting list for each trigram in the term
+            int nTrigrams = term.length() - 2;
+            int[][] lists = new int[nTrigrams][];
+            for (int j = 0; j < nTrigrams; j++) {
+                int t = Arrays.binarySearch(trigrams, trigram(term, j));
+                if (t < 0)
+                    return new int[0];
+                lists[j] = postings[t];
+            }
+            // Intersect, starting with the shortest list
+            Arrays.sort(lists, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] lhs, int[] rhs) {
+                    return lhs.length - rhs.length;
+                }
+            });
+            int[] candidates = lists[0];
+            int nCandidates = candidates.length;
+            for (int j = 1; j < lists.length && nCandidates > 0; j++) {
+                if (lists[j] == lists[j - 1])
+                    continue; // Repeated trigram
+                int[] next = new int[nCandidates];
+                int nNext = 0;
+                for (int k = 0; k < nCandidates; k++)
+                    if (Arrays.binarySearch(lists[j], candidates[k]) >= 0)
+                        next[nNext++] = candidates[k];
+                candidates = next;
+                nCandidates = nNext;
+            }
+            // Check the actual substring (trigrams can match out of order) and map to leaders
+            int[] result = new int[nCandidates];
+            int nResult = 0;
+            for (int k = 0; k < nCandidates; k++)
+                if (names[candidates[k]].contains(term))
+                    result[nResult++] = leaderIds[candidates[k]];
+            return sortUnique(result, nResult);
+        }
+
+        // Sort and remove duplicate leaders (e.g. from alternate spellings)
+        private static int[] sortUnique(int[] ids, int length) {
+            Arrays.sort(ids, 0, length);
+            int nUnique = 0;
+            for (int k = 0; k < length; k++)
+                if (nUnique == 0 || ids[nUnique - 1] != ids[k])
+                    ids[nUnique++] = ids[k];
+            return Arrays.copyOf(ids, nUnique);
+        }
+    }
+}
@@ -16,12 +16,18 @@ import java.util.List;
  * A subclass of up AlphabetIndexer that allows setting custom section labels.
  *
  * <p>This is used as a base class for StringIndexer, and is used in IndexedCursorAdapter.
+ *
+ * <p>If the cursor has a {@link SectionTable} for the indexed column, positions and sections
+ * are looked up in arrays built from the table instead of by moving the cursor.
  */
 public class LetterIndexer extends AlphabetIndexer {
     boolean mIsDesc;
     boolean mIsSorted = true;
     int mTotalCount = 0;
     String[] mSections;
+    SectionTable mTable; // Runs of index values (or null)
+    int[] mRunSections; // Section for each run in mTable
+    int[] mSectionPositions; // First position for each section
 
     public LetterIndexer(Cursor cursor, int sortedColumnIndex, CharSequence alphabet) {
         super(cursor, sortedColumnIndex, alphabet);
@@ -42,6 +48,7 @@ public class LetterIndexer extends AlphabetIndexer {
     // mAlphabetArray is private in AlphabetIndexer, but we get get at it through getSections()
     protected void setSections(String[] sections) {
         System.arraycopy(sections, 0, getSections(), 0, sections.length);
+        mRunSections = null;
     }
 
     /**
@@ -75,24 +82,26 @@ public class LetterIndexer extends AlphabetIndexer {
     @Override
     public void setCursor(Cursor cursor) {
         super.setCursor(cursor);
+        mTable = SectionTable.fromCursor(cursor, mColumnIndex);
+        mRunSections = null;
         if (! mIsSorted)
             return;
         if (cursor != null) {
             // Find first and last values
             boolean isDesc = false;
-            if (cursor.getCount() > 0) {
+            if (mTable != null && mTable.getRunCount() > 0) {
+                String first = mTable.getLabel(0);
+                String last = mTable.getLabel(mTable.getRunCount() - 1);
+                isDesc = isDesc(first, last);
+            }
+            else if (mTable == null && cursor.getCount() > 0) {
                 int pos = cursor.getPosition();
                 cursor.moveToFirst();
                 String first = cursor.getString(mColumnIndex);
                 cursor.moveToLast();
                 String last = cursor.getString(mColumnIndex);
                 cursor.moveToPosition(pos);
-                // Try to compare first and last as integers first, then as strings
-                try {
-                    isDesc = Integer.parseInt(first) > Integer.parseInt(last);
-                } catch (NumberFormatException e) {
-                    isDesc = first.compareTo(last) > 0;
-                }
+                isDesc = isDesc(first, last);
             }
             // Reverse the appropriate arrays
             if (mIsDesc != isDesc) {
@@ -114,6 +123,81 @@ public class LetterIndexer extends AlphabetIndexer {
         }
     }
 
+    // Try to compare first and last as integers first, then as strings
+    private static boolean isDesc(String first, String last) {
+        try {
+            return Integer.parseInt(first) > Integer.parseInt(last);
+        } catch (NumberFormatException e) {
+            return first.compareTo(last) > 0;
+        }
+    }
+
+    // SectionTable lookups
+    //---------------------
+    // Maps runs to sections and sections to positions, the same way AlphabetIndexer does
+    // with the cursor: a position's section is the first section whose letter compares equal,
+    // and a section's position is the first row that compares >= its letter.
+    private boolean buildSectionArrays() {
+        if (mTable == null)
+            return false;
+        if (mRunSections != null)
+            return true;
+        int nRuns = mTable.getRunCount();
+        int nSections = mAlphabet.length();
+        String[] letters = new String[nSections];
+        for (int i = 0; i < nSections; i++)
+            letters[i] = Character.toString(mAlphabet.charAt(i));
+        // Section for each run
+        int[] runSections = new int[nRuns];
+        for (int run = 0; run < nRuns; run++) {
+            String label = mTable.getLabel(run);
+            if (label == null)
+                continue;
+            for (int i = 0; i < nSections; i++) {
+                if (compare(label, letters[i]) == 0) {
+                    runSections[run] = i;
+                    break;
+                }
+            }
+        }
+        // Position for each section (binary search over runs)
+        int[] sectionPositions = new int[nSections];
+        for (int i = 0; i < nSections; i++) {
+            int low = 0, high = nRuns;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                String label = mTable.getLabel(mid);
+                if (label == null || compare(label, letters[i]) < 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            sectionPositions[i] = low < nRuns ? mTable.getStart(low) : mTable.getCount();
+        }
+        mSectionPositions = sectionPositions;
+        mRunSections = runSections;
+        return true;
+    }
+
+    @Override
+    public int getPositionForSection(int sectionIndex) {
+        if (! buildSectionArrays())
+            return super.getPositionForSection(sectionIndex);
+        if (mSectionPositions.length == 0)
+            return 0;
+        sectionIndex = Math.max(0, Math.min(sectionIndex, mSectionPositions.length - 1));
+        return mSectionPositions[sectionIndex];
+    }
+
+    @Override
+    public int getSectionForPosition(int position) {
+        if (! buildSectionArrays())
+            return super.getSectionForPosition(position);
+        if (mRunSections.length == 0)
+            return 0;
+        return mRunSections[mTable.getRunForPosition(position)];
+    }
+
     /**
      * Gets the number of items in a section.
      *
@@ -0,0 +1,138 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import android.os.Process;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prioritized executor for {@link MinutesLoader} background queries.
+ *
+ * <p>Queued queries run in order of priority class (see {@code MinutesLoader.PRIORITY_*}),
+ * then by how long the same SQL took last time, so that short queries run ahead of long
+ * ones. Queries that haven't been timed yet are assumed to be short.
+ *
+ * <p>The pool is sized to the number of cores and database connections, since extra threads
+ * would just wait for a connection.
+ */
+public class LoaderExecutor {
+    private static final String TAG = "MinutesLoader";
+    private static final int MAX_TIMINGS = 128;
+
+    // Singleton
+    private static LoaderExecutor instance = null;
+
+    private LoaderExecutor() {
+        int poolSize = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                                            MinutesDb.getConnectionPoolSize()));
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG + " #" + mCount.getAndIncrement());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized LoaderExecutor getInstance() {
+        if (instance == null)
+            instance = new LoaderExecutor();
+        return instance;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+    // Last run time for recent queries, keyed by SQL text (access order makes this an LRU)
+    private final Map<String, Long> mTimings =
+        new LinkedHashMap<String, Long>(MAX_TIMINGS, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > MAX_TIMINGS;
+            }
+        };
+
+    /**
+     * Gets an Executor that queues tasks at a priority.
+     *
+     * @param priority {@code MinutesLoader.PRIORITY_*} class
+     * @param sql SQL text used to estimate the run time (may be null)
+     * @return Executor
+     */
+    public Executor getExecutor(final int priority, final String sql) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mExecutor.execute(new Task(command, priority, getTiming(sql),
+                                           mSequence.getAndIncrement()));
+            }
+        };
+    }
+
+    /** Records the run time for a query. */
+    public void putTiming(String sql, long nanos) {
+        if (sql == null)
+            return;
+        synchronized (mTimings) {
+            mTimings.put(sql, nanos);
+        }
+    }
+
+    private long getTiming(String sql) {
+        if (sql == null)
+            return 0;
+        synchronized (mTimings) {
+            Long nanos = mTimings.get(sql);
+            return nanos != null ? nanos : 0;
+        }
+    }
+
+    // A queued task, ordered by priority, then estimated time, then FIFO
+    private static class Task implements Runnable, Comparable<Task> {
+        final Runnable mRunnable;
+        final int mPriority;
+        final long mEstimate;
+        final long mSequence;
+
+        Task(Runnable runnable, int priority, long estimate, long sequence) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mEstimate = estimate;
+            mSequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority)
+                return mPriority < other.mPriority ? -1 : 1;
+            if (mEstimate != other.mEstimate)
+                return mEstimate < other.mEstimate ? -1 : 1;
+            return mSequence < other.mSequence ? -1 : (mSequence > other.mSequence ? 1 : 0);
+        }
+    }
+}
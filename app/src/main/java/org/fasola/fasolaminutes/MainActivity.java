@@ -7,9 +7,9 @@ package org.fasola.fasolaminutes;
 
 import android.content.Intent;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import androidx.viewpager.widget.ViewPager;
 import android.util.Log;
 import android.view.Menu;
@@ -87,9 +87,22 @@ public class MainActivity extends SimpleTabActivity {
                                      .where(C.Singing.recordingCount, ">", "10")
                                      .order("RANDOM()")
                                      .limit(1);
-                long singingId = MinutesDb.getInstance().queryLong(query.toString());
-                if (singingId > -1)
-                    PlaybackService.playSinging(this, PlaybackService.ACTION_PLAY_MEDIA, singingId);
+                // Query in the background, since the database may still be installing
+                MinutesLoader loader = new MinutesLoader(query) {
+                    @Override
+                    protected Cursor onLoadInBackground(MinutesDb db, CancellationSignal cancellationSignal) {
+                        // Not through QueryCache, which would return the same singing each time
+                        return db.query(getQuery(), cancellationSignal);
+                    }
+
+                    @Override
+                    public void onLoadFinished(Cursor cursor) {
+                        if (cursor.moveToFirst())
+                            PlaybackService.playSinging(MainActivity.this,
+                                    PlaybackService.ACTION_PLAY_MEDIA, cursor.getLong(0));
+                    }
+                };
+                loader.setPriority(MinutesLoader.PRIORITY_HEADER).startLoading();
             }
             else {
                 try {
@@ -119,6 +132,7 @@ public class MainActivity extends SimpleTabActivity {
             setIntentActivity(LeaderActivity.class);
             setItemLayout(R.layout.list_item_leader);
             ((SimpleTabActivity)getActivity()).setHelpResource(this, R.string.help_leader_list);
+            setPaging(true);
             updateQuery();
         }
 
@@ -165,9 +179,25 @@ public class MainActivity extends SimpleTabActivity {
 
         @Override
         public SQL.Query onUpdateSearch(SQL.Query query, String searchTerm) {
+            // The index is searched in onLoadSearch(); build it on the first search
+            LeaderNameIndex.getInstance().buildInBackground();
             return query.where(C.Leader.fullName, "LIKE", "%" + searchTerm + "%")
                         .or(C.LeaderAlias.alias, "LIKE", "%" + searchTerm + "%");
         }
+
+        // Only the LIKE query is narrowed: fuzzy matches can grow with the search term, so the
+        // index search always starts from the original query (see LeaderNameIndex)
+        @Override
+        protected SQL.Query onLoadSearch(SQL.Query query, String searchTerm) {
+            // Use the trigram index if it's ready (otherwise the LIKE query is used)
+            int[] leaderIds = LeaderNameIndex.getInstance().search(searchTerm);
+            if (leaderIds == null)
+                return null;
+            Integer[] ids = new Integer[leaderIds.length];
+            for (int i = 0; i < ids.length; i++)
+                ids[i] = leaderIds[i];
+            return query.where(C.Leader.id, "IN", ids);
+        }
     }
 
     public static class SongListFragment extends CursorStickyListFragment {
@@ -280,14 +310,21 @@ public class MainActivity extends SimpleTabActivity {
         private SQL.Column searchColumn(String searchTerm, Object val1, Object val2, Object val3, Object val4) {
             return new SQL.QueryColumn(
                 "CASE ",
-                    C.Song.fullName.format("WHEN {column} LIKE %s THEN %s ", searchTerm, searchColumn_fixValue(val1)),
-                    C.Song.composer.format("WHEN {column} LIKE %s THEN %s ", searchTerm, searchColumn_fixValue(val2)),
-                    C.Song.poet.format("WHEN {column} LIKE %s THEN %s ", searchTerm, searchColumn_fixValue(val3)),
-                    C.Song.lyrics.format("WHEN {column} LIKE %s THEN %s ", searchTerm, searchColumn_fixValue(val4)),
+                    searchColumn_when(C.SongSearch.title, searchTerm, val1),
+                    searchColumn_when(C.SongSearch.composer, searchTerm, val2),
+                    searchColumn_when(C.SongSearch.poet, searchTerm, val3),
+                    searchColumn_when(C.SongSearch.lyrics, searchTerm, val4),
                 "END"
             );
         }
 
+        // WHEN clause for songs with the search term in a full-text search column
+        // NB: match() is passed as a string so the search table isn't joined
+        private SQL.Column searchColumn_when(SQL.Column column, String searchTerm, Object value) {
+            return C.Song.id.format("WHEN {column} IN %s THEN %s ",
+                    C.SongSearch.match(column, searchTerm).toString(), searchColumn_fixValue(value));
+        }
+
         // Add quotes around unquoted strings
         private String searchColumn_fixValue(Object value) {
             String strVal = value.toString();
@@ -334,9 +371,9 @@ public class MainActivity extends SimpleTabActivity {
 
         @Override
         public SQL.Query onUpdateSearch(SQL.Query query, String searchTerm) {
-            searchTerm = DatabaseUtils.sqlEscapeString("%" + searchTerm + "%");
             // Start with standard query ordered by search sections
-            query = songQuery().orderAsc(searchColumn(searchTerm, 0, 1, 2, 3));
+            query = songQuery().where(C.Song.id, "IN", C.SongSearch.match(null, searchTerm))
+                               .orderAsc(searchColumn(searchTerm, 0, 1, 2, 3));
             showHeaders(true);
             setStringIndexer();
             // Add custom sorting options
@@ -400,6 +437,7 @@ public class MainActivity extends SimpleTabActivity {
             setIntentActivity(SingingActivity.class);
             setItemLayout(R.layout.list_item_singing);
             ((SimpleTabActivity)getActivity()).setHelpResource(this, R.string.help_singing_list);
+            setPaging(true);
             updateQuery();
         }
 
@@ -427,8 +465,7 @@ public class MainActivity extends SimpleTabActivity {
 
         @Override
         public SQL.Query onUpdateSearch(SQL.Query query, String searchTerm) {
-            return query.where(C.Singing.name, "LIKE", "%" + searchTerm + "%")
-                        .or(C.Singing.location, "LIKE", "%" + searchTerm + "%");
+            return query.where(C.Singing.id, "IN", C.SingingSearch.match(null, searchTerm));
         }
 
         @Override
@@ -44,11 +44,19 @@ public class MinutesApplication extends Application
     public void onCreate() {
         super.onCreate();
         mContext = getApplicationContext();
-        // Open the database
-        MinutesDb.getInstance(mContext);
+        // Open the database (installing it on first launch or after an upgrade)
+        MinutesDb.getInstance().openInBackground(mContext);
+        // Restore the playlist from the last session
+        Playlist.getInstance().restore(mContext);
         registerActivityLifecycleCallbacks(this);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        QueryCache.getInstance().trimMemory(level);
+    }
+
     public final static int MIN_Y_AXIS = 4;
     public final static int MIN_X_AXIS_RANGE = 2; // must be even
 
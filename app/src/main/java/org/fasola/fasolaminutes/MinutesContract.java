@@ -30,6 +30,12 @@ public class MinutesContract {
     public static SingingDAO Singing = new SingingDAO();
     public static SongLeaderDAO SongLeader = new SongLeaderDAO();
     public static SongNeighborDAO SongNeighbor = new SongNeighborDAO();
+    // Derived statistics tables (built by MinutesDb after installing the database)
+    public static SongDerivedStatsDAO SongDerivedStats = new SongDerivedStatsDAO();
+    public static SongYearDerivedStatsDAO SongYearDerivedStats = new SongYearDerivedStatsDAO();
+    public static LeaderDerivedStatsDAO LeaderDerivedStats = new LeaderDerivedStatsDAO();
+    public static SongSearchDAO SongSearch = new SongSearchDAO();
+    public static SingingSearchDAO SingingSearch = new SingingSearchDAO();
 
     // Initialize joins and calculated columns
     static {
@@ -43,6 +49,12 @@ public class MinutesContract {
             Leader.id + " = " + LeaderAlias.leaderId + " AND " +
             LeaderAlias.type + " = 'Alternate Spelling'"
         );
+        SQL.BaseTable.join(Song.id, SongDerivedStats.songId);
+        SQL.BaseTable.join(SongStats, SongYearDerivedStats,
+            SongStats.songId + " = " + SongYearDerivedStats.songId + " AND " +
+            SongStats.year + " = " + SongYearDerivedStats.year
+        );
+        SQL.BaseTable.join(Leader.id, LeaderDerivedStats.leaderId);
         Song.onCreate();
         SongStats.onCreate();
         Leader.onCreate();
@@ -64,6 +76,42 @@ public class MinutesContract {
         }
     }
 
+    // Full-text search table, where each docid is the id of a row in another table
+    private static class MinutesSearchTable extends MinutesBaseTable {
+        protected MinutesSearchTable(String tableName) {
+            super(tableName);
+        }
+
+        /**
+         * Subquery of docids for rows matching each word of a search term as a prefix
+         *
+         * <p>A search term without any words matches every row.
+         *
+         * <p>Use as an IN value, e.g. {@code where(Song.id, "IN", SongSearch.match(null, term))}
+         *
+         * @param column column to search, or null to search all columns
+         * @param searchTerm search term as typed by the user
+         * @return {@link SQL.Column} subquery
+         */
+        public SQL.Column match(SQL.Column column, String searchTerm) {
+            String prefix = column == null ? "" :
+                    column.getName().substring(TABLE_NAME.length() + 1) + ":";
+            StringBuilder expr = new StringBuilder();
+            for (String word : searchTerm.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+                if (word.isEmpty())
+                    continue;
+                if (expr.length() > 0)
+                    expr.append(' ');
+                expr.append(prefix).append(word).append('*');
+            }
+            // No words (e.g. only punctuation), so don't filter: MATCH '' matches nothing
+            if (expr.length() == 0)
+                return SQL.Column.SubQuery(this, "SELECT docid FROM " + this);
+            return SQL.Column.SubQuery(this,
+                    "SELECT docid FROM " + this + " WHERE " + this + " MATCH " + SQL.bind(expr));
+        }
+    }
+
     /* Song table */
     public static final class SongDAO extends MinutesBaseTable {
         protected SongDAO() {
@@ -99,14 +147,7 @@ public class MinutesContract {
             pageSort = column(number.format("{column} * 1"));
             leaderCount = subQuery(LeaderStats.leaderId.countDistinct());
             leadCount = column(SongStats.leadCount.sum());
-            coleadCount = subQuery(
-                "SELECT COUNT(*) FROM (" +
-                    SQL.select("1")
-                       .from(SongLeader)
-                       .group(SongLeader.leadId)
-                       .where(SongLeader.songId, "=", Song.id)
-                       .having(SongLeader.leaderId.count(), ">" , 1) +
-                ")");
+            coleadCount = subQuery(SongDerivedStats.coleadCount);
             fullTitle = concat(title, titleOrdinal.format(
                 "(CASE WHEN {column} <> '' " +
                     "THEN ' (' || {column} || ')' " +
@@ -132,11 +173,7 @@ public class MinutesContract {
 
         @Override
         protected void onCreate() {
-            leadPercent = leadCount.cast("FLOAT").format(
-                "100. * {column} / (%s)",
-                "SELECT SUM(song_stats_total.lead_count) " +
-                "FROM song_stats song_stats_total " +
-                "WHERE song_stats_total.year = song_stats.year");
+            leadPercent = subQuery(SongYearDerivedStats.leadPercent);
         }
 
         public SQL.Column songId, year, leadCount, rank, leadPercent;
@@ -160,19 +197,7 @@ public class MinutesContract {
             songCount = column(SongLeader.songId.countDistinct());
             singingCount = column(SongLeader.singingId.countDistinct());
             aka = subQuery(LeaderAlias.alias.func("group_concat", true));
-            majorPercent = column(
-                Song.rawKey.format(
-                    "CASE " +
-                        // Key changes = 0.5
-                        "WHEN {} LIKE '%%,%%' THEN 0.5 " +
-                        // Minor = 0
-                        "WHEN {} LIKE '%%min' THEN 0 " +
-                        // Major = 1
-                        "ELSE 1.0 " +
-                    "END")
-                // Turn into percent of total leads
-                .format("SUM({}) / %s", leadCount)
-            );
+            majorPercent = subQuery(LeaderDerivedStats.majorPercent);
             // All leaders in a lead
             allNames = column(C.Leader.fullName.func("group_concat", "', '"));
         }
@@ -269,6 +294,63 @@ public class MinutesContract {
 
         public SQL.Column fromId, toId, rank;
     }
-}
 
+    /* Derived song statistics (see MinutesDb.DerivedStats) */
+    public static final class SongDerivedStatsDAO extends MinutesBaseTable {
+        protected SongDerivedStatsDAO() {
+            super("derived_song_stats");
+            songId = column("song_id");
+            coleadCount = column("colead_count");
+        }
 
+        public SQL.Column songId, coleadCount;
+    }
+
+    /* Derived song statistics by year */
+    public static final class SongYearDerivedStatsDAO extends MinutesBaseTable {
+        protected SongYearDerivedStatsDAO() {
+            super("derived_song_year_stats");
+            songId = column("song_id");
+            year = column("year");
+            leadPercent = column("lead_percent");
+        }
+
+        public SQL.Column songId, year, leadPercent;
+    }
+
+    /* Derived leader statistics */
+    public static final class LeaderDerivedStatsDAO extends MinutesBaseTable {
+        protected LeaderDerivedStatsDAO() {
+            super("derived_leader_stats");
+            leaderId = column("leader_id");
+            majorPercent = column("major_percent");
+        }
+
+        public SQL.Column leaderId, majorPercent;
+    }
+
+    /* Song full-text search table (docid = Song.id) */
+    public static final class SongSearchDAO extends MinutesSearchTable {
+        protected SongSearchDAO() {
+            super("song_search");
+            title = column("title");
+            composer = column("composer");
+            poet = column("poet");
+            lyrics = column("lyrics");
+        }
+
+        public SQL.Column title, composer, poet, lyrics;
+    }
+
+    /* Singing full-text search table (docid = Singing.id) */
+    public static final class SingingSearchDAO extends MinutesSearchTable {
+        protected SingingSearchDAO() {
+            super("singing_search");
+            name = column("name");
+            location = column("location");
+            fullText = column("minutes");
+        }
+
+        public SQL.Column name, location, fullText;
+    }
+}
@@ -7,14 +7,25 @@ package org.fasola.fasolaminutes;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.util.Log;
 
 import com.readystatesoftware.sqliteasset.SQLiteAssetHelper;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * The database class
  */
 public class MinutesDb {
+    private static final String TAG = "MinutesDb";
+
     // Singleton
     private static MinutesDb instance = null;
 
@@ -34,38 +45,244 @@ public class MinutesDb {
     }
 
     // Raw database operations
-    private SQLiteDatabase db = null;
+    private volatile SQLiteDatabase db = null;
     private MinutesDbHelper mHelper = null; // See below
+    private Context mContext = null; // Set by openInBackground()
 
-    public SQLiteDatabase open(Context context) {
+    public synchronized SQLiteDatabase open(Context context) {
         if (db == null) {
+            // Install from the compressed asset before SQLiteAssetHelper tries to copy it
+            DbInstaller.installIfNeeded(context);
             if (mHelper == null)
                 mHelper = new MinutesDbHelper(context);
             db = mHelper.getReadableDatabase();
+            // DerivedStats are temp tables on a read-only database (see onOpen), which only
+            // the main connection can see
+            if (! db.isReadOnly())
+                openReaders();
+            applyProfile(context);
+            // The database may have been installed or upgraded
+            QueryCache.getInstance().clear();
         }
         return db;
     }
 
+    /**
+     * Installs (if needed) and opens the database on a background thread.
+     *
+     * <p>Anything that needs the database before it is open waits for it (or opens it on the
+     * calling thread if the background thread hasn't started yet), so the UI can be shown
+     * while the database is installed. Query through a MinutesLoader, not on the UI thread.
+     *
+     * @param context context
+     */
+    public void openInBackground(Context context) {
+        mContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                open(mContext);
+            }
+        }, TAG).start();
+    }
+
+    // Get the main connection, waiting for openInBackground() to finish
+    private SQLiteDatabase awaitDb() {
+        SQLiteDatabase result = db;
+        if (result == null && mContext != null)
+            result = open(mContext);
+        return result;
+    }
+
     public SQLiteDatabase getDb() {
-        return db;
+        return awaitDb();
     }
 
     // Don't just use db.close(), close through the helper class.
-    public void close() {
+    public synchronized void close() {
+        mContext = null;
         if (db != null) {
+            QueryCache.getInstance().clear();
+            closeReaders();
             mHelper.close();
             db = null;
         }
     }
 
+    // Read pool
+    // ------------------------------------------------------------------------------------------
+    // Without write-ahead logging, each SQLiteDatabase has a single connection, so queries
+    // on one instance run one after another. Cursor queries are spread over extra read-only
+    // instances of the same file so that loaders can run in parallel.
+    // (WAL isn't used because SQLiteAssetHelper replaces the database file on upgrade, which
+    // could leave a stale -wal file behind.)
+    private static int sMaxConnections =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private volatile SQLiteDatabase[] mReaders = new SQLiteDatabase[0];
+    private final AtomicInteger mNextReader = new AtomicInteger();
+
+    /**
+     * Sets the maximum number of connections used for queries (including the main connection).
+     *
+     * <p>Takes effect the next time the database is opened.
+     *
+     * @param maxConnections number of connections (at least 1)
+     */
+    public static void setMaxConnections(int maxConnections) {
+        sMaxConnections = Math.max(1, maxConnections);
+    }
+
+    // Number of connections that can run queries at the same time
+    public static int getConnectionPoolSize() {
+        MinutesDb db = instance;
+        if (db != null && db.db != null)
+            return db.mReaders.length + 1;
+        return sMaxConnections;
+    }
+
+    private void openReaders() {
+        List<SQLiteDatabase> readers = new ArrayList<>();
+        try {
+            while (readers.size() < sMaxConnections - 1)
+                readers.add(SQLiteDatabase.openDatabase(db.getPath(), null,
+                                                        SQLiteDatabase.OPEN_READONLY));
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Using " + (readers.size() + 1) + " database connections", e);
+        }
+        mReaders = readers.toArray(new SQLiteDatabase[readers.size()]);
+    }
+
+    private void closeReaders() {
+        for (SQLiteDatabase reader : mReaders)
+            reader.close();
+        mReaders = new SQLiteDatabase[0];
+    }
+
+    // Apply stored PRAGMA settings, or probe for the best settings on first launch
+    // The main connection isn't query_only, since it builds DerivedStats
+    private void applyProfile(Context context) {
+        DbProfile profile = DbProfile.load(context);
+        if (profile == null) {
+            profile = DbProfile.DEFAULT;
+            DbProfile.probeInBackground(context, db.getPath(), new DbProfile.ProbeListener() {
+                @Override
+                public void onProbeFinished(DbProfile profile) {
+                    applyProfile(profile);
+                }
+            });
+        }
+        applyProfile(profile);
+    }
+
+    private synchronized void applyProfile(DbProfile profile) {
+        if (db == null)
+            return;
+        profile.apply(db, false);
+        for (SQLiteDatabase reader : mReaders)
+            profile.apply(reader, true);
+    }
+
+    // Get the next connection for a Cursor query (round-robin, including the main connection)
+    private SQLiteDatabase getReader() {
+        SQLiteDatabase main = awaitDb();
+        SQLiteDatabase[] readers = mReaders;
+        int index = (mNextReader.getAndIncrement() & Integer.MAX_VALUE) % (readers.length + 1);
+        return index < readers.length ? readers[index] : main;
+    }
+
     // Queries
+    // sql is either an SQL.Query (values are bound as args) or a String
     public Cursor query(Object sql, String... args) {
-        return db.rawQuery(sql.toString(), args);
+        return query(sql, null, args);
+    }
+
+    // cancellationSignal (may be null) aborts the query, including when the cursor is filled
+    public Cursor query(Object sql, CancellationSignal cancellationSignal, String... args) {
+        if (sql instanceof SQL.Query) {
+            SQL.Compiled compiled = ((SQL.Query) sql).compile();
+            return getReader().rawQuery(compiled.getSql(), compiled.bindArgs(args),
+                                        cancellationSignal);
+        }
+        return getReader().rawQuery(sql.toString(), args, cancellationSignal);
+    }
+
+    // Queries against a list of values
+    // ------------------------------------------------------------------------------------------
+    // Long IN lists can run into SQLite's limits on bound variables and statement length, so
+    // values are inserted into a temp table instead. Temp tables belong to a connection, and
+    // the readers are query_only, so these queries run on the main connection.
+    /** Temp table for {@link #queryValues}: {@code (pos INTEGER PRIMARY KEY, value)} */
+    public static final String VALUES_TABLE = "temp.query_values";
+    /** Index of the value in the list passed to {@link #queryValues} */
+    public static final String VALUES_POS = VALUES_TABLE + ".pos";
+    public static final String VALUES_VALUE = VALUES_TABLE + ".value";
+
+    /** Reads a Cursor while the values are in {@link #VALUES_TABLE}. */
+    public interface CursorReader<T> {
+        T read(Cursor cursor);
+    }
+
+    /**
+     * Runs a query that joins {@link #VALUES_TABLE}.
+     *
+     * <p>The cursor is only valid inside {@code reader}, since the table is reused.
+     *
+     * @param values values for the table (Numbers are bound as integers)
+     * @param start first index in values
+     * @param end index after the last value
+     * @param sql SQL.Query or String that joins {@link #VALUES_TABLE}
+     * @param reader reads the cursor
+     * @return result of {@code reader}
+     */
+    public <T> T queryValues(Object[] values, int start, int end, Object sql,
+                             CursorReader<T> reader) {
+        SQLiteDatabase main = awaitDb();
+        // The transaction keeps other threads off the connection until the cursor is read
+        main.beginTransactionNonExclusive();
+        try {
+            main.execSQL("CREATE TABLE IF NOT EXISTS " + VALUES_TABLE +
+                         " (pos INTEGER PRIMARY KEY, value)");
+            main.execSQL("DELETE FROM " + VALUES_TABLE);
+            SQLiteStatement insert = main.compileStatement(
+                    "INSERT INTO " + VALUES_TABLE + " (pos, value) VALUES (?, ?)");
+            try {
+                for (int i = start; i < end; i++) {
+                    insert.bindLong(1, i);
+                    if (values[i] == null)
+                        insert.bindNull(2);
+                    else if (values[i] instanceof Number)
+                        insert.bindLong(2, ((Number) values[i]).longValue());
+                    else
+                        insert.bindString(2, values[i].toString());
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+            Cursor cursor;
+            if (sql instanceof SQL.Query) {
+                SQL.Compiled compiled = ((SQL.Query) sql).compile();
+                cursor = main.rawQuery(compiled.getSql(), compiled.bindArgs());
+            }
+            else
+                cursor = main.rawQuery(sql.toString(), null);
+            T result;
+            try {
+                result = reader.read(cursor);
+            } finally {
+                cursor.close();
+            }
+            main.setTransactionSuccessful();
+            return result;
+        } finally {
+            main.endTransaction();
+        }
     }
 
     // Query shortcuts
+    // These wait for the database to open, so use a MinutesLoader on the UI thread
     public static final long NOT_FOUND = -1;
-    public long queryLong(String sql, String... args) {
+    public long queryLong(Object sql, String... args) {
         Cursor cursor = query(sql, args);
         long result = NOT_FOUND;
         if (cursor.moveToFirst())
@@ -74,7 +291,7 @@ public class MinutesDb {
         return result;
     }
 
-    public String queryString(String sql, String... args) {
+    public String queryString(Object sql, String... args) {
         Cursor cursor = query(sql, args);
         String result = null;
         if (cursor.moveToFirst())
@@ -83,7 +300,7 @@ public class MinutesDb {
         return result;
     }
 
-    public String[] queryStringArray(String sql, String... args) {
+    public String[] queryStringArray(Object sql, String... args) {
         Cursor cursor = query(sql, args);
         String[] result = new String[cursor.getCount()];
         while (cursor.moveToNext())
@@ -97,7 +314,123 @@ public class MinutesDb {
     private static class MinutesDbHelper extends SQLiteAssetHelper {
         public MinutesDbHelper(Context context) {
             super(context.getApplicationContext(), C.DB_NAME, null, C.DB_VERSION);
+            // Last fallback if DbInstaller couldn't install or upgrade: copy the plain asset
             setForcedUpgrade();
         }
+
+        // Called after the asset database is installed or upgraded (and on every open)
+        // SQLiteAssetHelper opens the database read-only if it can't be written (e.g. the
+        // disk is full); then stale or missing tables are built as temp tables instead
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (! db.isReadOnly())
+                DerivedStats.update(db);
+            else if (DerivedStats.getVersion(db) != DerivedStats.VERSION)
+                DerivedStats.build(db, "temp.");
+        }
+    }
+
+    // Derived statistics
+    // ------------------------------------------------------------------------------------------
+    // Aggregates that are too slow to compute per row, materialized into indexed tables
+    // (see the *DerivedStats DAOs in MinutesContract), and full-text search tables.
+    // The asset database is replaced on upgrade, so tables are rebuilt whenever they are
+    // missing or VERSION changes. The build runs in onOpen(), on the thread that opens the
+    // database (see openInBackground()).
+    // Incremental upgrades (see DbInstaller) call invalidate() so the tables are rebuilt too.
+    static class DerivedStats {
+        static final int VERSION = 2;
+        static final String VERSION_TABLE = "derived_stats_version";
+
+        static void invalidate(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + VERSION_TABLE);
+        }
+
+        static void update(SQLiteDatabase db) {
+            if (getVersion(db) == VERSION)
+                return;
+            db.beginTransaction();
+            try {
+                build(db, "");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        static long getVersion(SQLiteDatabase db) {
+            if (DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = ?",
+                    new String[] {VERSION_TABLE}) == 0)
+                return 0;
+            return DatabaseUtils.longForQuery(db, "SELECT MAX(version) FROM " + VERSION_TABLE, null);
+        }
+
+        // schema is "" for the main database or "temp." for temp tables
+        static void build(SQLiteDatabase db, String schema) {
+            // Number of leads with more than one leader, for each song
+            db.execSQL("DROP TABLE IF EXISTS " + schema + C.SongDerivedStats);
+            db.execSQL("CREATE TABLE " + schema + C.SongDerivedStats + " (" +
+                    "song_id INTEGER PRIMARY KEY, " +
+                    "colead_count INTEGER NOT NULL)");
+            db.execSQL("INSERT INTO " + schema + C.SongDerivedStats + " (song_id, colead_count)" +
+                    " SELECT songs.id, COUNT(coleads.song_id)" +
+                    " FROM songs" +
+                    " LEFT JOIN (" +
+                        "SELECT song_id FROM song_leader_joins" +
+                        " GROUP BY lead_id" +
+                        " HAVING COUNT(leader_id) > 1" +
+                    ") coleads ON coleads.song_id = songs.id" +
+                    " GROUP BY songs.id");
+            // Percent of each year's leads, for each song
+            db.execSQL("DROP TABLE IF EXISTS " + schema + C.SongYearDerivedStats);
+            db.execSQL("CREATE TABLE " + schema + C.SongYearDerivedStats + " (" +
+                    "song_id INTEGER NOT NULL, " +
+                    "year INTEGER NOT NULL, " +
+                    "lead_percent REAL, " +
+                    "PRIMARY KEY (song_id, year))");
+            db.execSQL("INSERT INTO " + schema + C.SongYearDerivedStats + " (song_id, year, lead_percent)" +
+                    " SELECT song_stats.song_id, song_stats.year," +
+                        " 100. * CAST(song_stats.lead_count AS FLOAT) / year_totals.lead_count" +
+                    " FROM song_stats" +
+                    " JOIN (" +
+                        "SELECT year, SUM(lead_count) AS lead_count FROM song_stats GROUP BY year" +
+                    ") year_totals ON year_totals.year = song_stats.year");
+            // Fraction of each leader's leads in a major key (key changes count as half)
+            db.execSQL("DROP TABLE IF EXISTS " + schema + C.LeaderDerivedStats);
+            db.execSQL("CREATE TABLE " + schema + C.LeaderDerivedStats + " (" +
+                    "leader_id INTEGER PRIMARY KEY, " +
+                    "major_percent REAL)");
+            db.execSQL("INSERT INTO " + schema + C.LeaderDerivedStats + " (leader_id, major_percent)" +
+                    " SELECT leaders.id," +
+                        " SUM(CASE" +
+                            " WHEN songs.Keys LIKE '%,%' THEN 0.5" +
+                            " WHEN songs.Keys LIKE '%min' THEN 0" +
+                            " ELSE 1.0" +
+                        " END) / leaders.lead_count" +
+                    " FROM leaders" +
+                    " JOIN song_leader_joins ON song_leader_joins.leader_id = leaders.id" +
+                    " JOIN songs ON songs.id = song_leader_joins.song_id" +
+                    " GROUP BY leaders.id");
+            // Full-text search
+            // Android's SQLite doesn't include FTS5, so use FTS4
+            db.execSQL("DROP TABLE IF EXISTS " + schema + C.SongSearch);
+            db.execSQL("CREATE VIRTUAL TABLE " + schema + C.SongSearch +
+                    " USING fts4(title, composer, poet, lyrics)");
+            db.execSQL("INSERT INTO " + schema + C.SongSearch + " (docid, title, composer, poet, lyrics) " +
+                    SQL.select(C.Song.id, C.Song.fullName, C.Song.composer, C.Song.poet, C.Song.lyrics)
+                       .from(C.Song));
+            db.execSQL("DROP TABLE IF EXISTS " + schema + C.SingingSearch);
+            db.execSQL("CREATE VIRTUAL TABLE " + schema + C.SingingSearch +
+                    " USING fts4(name, location, minutes)");
+            db.execSQL("INSERT INTO " + schema + C.SingingSearch + " (docid, name, location, minutes) " +
+                    SQL.select(C.Singing.id, C.Singing.name, C.Singing.location, C.Singing.fullText)
+                       .from(C.Singing));
+            // Mark as current
+            db.execSQL("DROP TABLE IF EXISTS " + schema + VERSION_TABLE);
+            db.execSQL("CREATE TABLE " + schema + VERSION_TABLE + " (version INTEGER)");
+            db.execSQL("INSERT INTO " + schema + VERSION_TABLE + " (version) VALUES (" + VERSION + ")");
+        }
     }
 }
\ No newline at end of file
@@ -7,11 +7,15 @@ package org.fasola.fasolaminutes;
 
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import androidx.loader.app.LoaderManager;
 import androidx.loader.content.CursorLoader;
 import androidx.loader.content.Loader;
 import android.util.Log;
 
+import java.util.concurrent.Executor;
+
 import static java.lang.System.nanoTime;
 
 /**
@@ -39,8 +43,15 @@ public class MinutesLoader implements LoaderManager.LoaderCallbacks<Cursor>,
         }
     }
 
+    // Priority classes for LoaderExecutor (lower runs first)
+    public static final int PRIORITY_HEADER = 0; // Titles and other small lookups
+    public static final int PRIORITY_LIST = 1; // Visible lists
+    public static final int PRIORITY_CHART = 2;
+    public static final int PRIORITY_PREFETCH = 3; // Pages loaded ahead of scrolling
+
     SQL.Query mQuery;
     String[] mQueryArgs;
+    int mPriority = PRIORITY_LIST;
     _MinutesLoaderCallbacksInterface mCallbacks;
 
     public MinutesLoader(_MinutesLoaderCallbacksInterface callbacks) {
@@ -74,6 +85,8 @@ public class MinutesLoader implements LoaderManager.LoaderCallbacks<Cursor>,
 
     private static class MinutesCursorLoader extends CursorLoader {
         MinutesLoader mLoader;
+        CancellationSignal mCancellationSignal;
+        boolean mHasResult = false;
 
         MinutesCursorLoader(MinutesLoader loader) {
             super(MinutesApplication.getContext());
@@ -85,23 +98,95 @@ public class MinutesLoader implements LoaderManager.LoaderCallbacks<Cursor>,
         public Cursor loadInBackground() {
             if (SQLiteDebugActivity.isDebug())
                 return null;
-            Thread.currentThread().setName("MinutesLoader: " + mLoader.getQuery().toString());
-            Cursor cursor = mLoader.onLoadInBackground(MinutesDb.getInstance());
-            // The query isn't executed until data is accessed in some way.
-            // Since the whole point of using a cursor loader is to do the heavy lifting in
-            // the background, we force the query to execute here.
-            cursor.getCount();
-
-            return cursor;
+            synchronized (this) {
+                if (isLoadInBackgroundCanceled())
+                    throw new OperationCanceledException();
+                mCancellationSignal = new CancellationSignal();
+            }
+            long start = nanoTime();
+            try {
+                Cursor cursor = mLoader.onLoadInBackground(MinutesDb.getInstance(), mCancellationSignal);
+                // The query isn't executed until data is accessed in some way.
+                // Since the whole point of using a cursor loader is to do the heavy lifting in
+                // the background, we force the query to execute here.
+                // Section offsets are found here too, so indexers don't have to scan the cursor
+                try {
+                    cursor.getCount();
+                    int indexColumn = cursor.getColumnIndex(SQL.INDEX_COLUMN);
+                    if (indexColumn != -1 && ! (cursor instanceof SectionTable.Source))
+                        cursor = new SectionTable.SectionCursor(
+                                cursor, SectionTable.build(cursor, indexColumn));
+                } catch (RuntimeException e) {
+                    // Including OperationCanceledException
+                    cursor.close();
+                    throw e;
+                }
+                LoaderExecutor.getInstance().putTiming(getSql(), nanoTime() - start);
+                return cursor;
+            } finally {
+                synchronized (this) {
+                    mCancellationSignal = null;
+                }
+            }
+        }
+
+        // Run on the prioritized executor instead of the AsyncTask pool
+        @Override
+        protected Executor getExecutor() {
+            return LoaderExecutor.getInstance().getExecutor(mLoader.getPriority(), getSql());
+        }
+
+        private String getSql() {
+            SQL.Query query = mLoader.getQuery();
+            return query != null ? query.compile().getSql() : null;
+        }
+
+        // Abort the running query (called by cancelLoad())
+        @Override
+        public void cancelLoadInBackground() {
+            super.cancelLoadInBackground();
+            synchronized (this) {
+                if (mCancellationSignal != null)
+                    mCancellationSignal.cancel();
+            }
+        }
+
+        @Override
+        public void deliverResult(Cursor cursor) {
+            if (cursor != null)
+                mHasResult = true;
+            super.deliverResult(cursor);
         }
     }
 
     /**
      * Override to provide custom loading behavior
+     *
+     * <p>By default, results are shared through {@link QueryCache}.
+     *
+     * @param db database
+     * @param cancellationSignal signal that aborts the query when the load is cancelled
      * @return Cursor
      */
-    protected Cursor onLoadInBackground(MinutesDb db) {
-        return db.query(mQuery != null ? mQuery : "", mQueryArgs);
+    protected Cursor onLoadInBackground(MinutesDb db, CancellationSignal cancellationSignal) {
+        if (mQuery == null)
+            return db.query("", cancellationSignal, mQueryArgs);
+        return QueryCache.getInstance().query(db, mQuery, cancellationSignal, mQueryArgs);
+    }
+
+    /**
+     * Cancels and destroys a loader that hasn't delivered a cursor yet (e.g. an outdated search)
+     *
+     * <p>The loader's running query is aborted through its {@link CancellationSignal}.
+     * Loaders that have finished are kept so that their results can be reused.
+     *
+     * @param manager LoaderManager that owns the loader
+     * @param id loader id
+     */
+    public static void cancelPending(LoaderManager manager, int id) {
+        Loader<Cursor> loader = manager.getLoader(id);
+        if (loader instanceof MinutesCursorLoader && ! ((MinutesCursorLoader) loader).mHasResult)
+            manager.destroyLoader(id);
     }
 
     // Either override these using an anonymous subclass of MinutesLoader, or pass an
@@ -179,6 +264,21 @@ public class MinutesLoader implements LoaderManager.LoaderCallbacks<Cursor>,
         setQueryArgs(queryArgs);
     }
 
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Sets the priority class for background queries.
+     *
+     * @param priority one of the {@code PRIORITY_*} constants
+     * @return this (for chaining)
+     */
+    public MinutesLoader setPriority(int priority) {
+        mPriority = priority;
+        return this;
+    }
+
     public boolean hasQuery() {
         return mQuery != null;
     }
@@ -187,7 +187,7 @@ public class NowPlayingActivity extends SimpleTabActivity {
                     ((TextView) view.findViewById(R.id.singing_location)).setText(singingLocation);
                     ((TextView) view.findViewById(R.id.singing_date)).setText(singingDate);
                 }
-            });
+            }.setPriority(MinutesLoader.PRIORITY_HEADER));
         }
 
         @Override
@@ -0,0 +1,368 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A Cursor that loads the rows of a list query a page at a time.
+ *
+ * <p>When the cursor is created, a lightweight key query selects just the {@code _id},
+ * {@link SQL#INDEX_COLUMN} and {@link CursorListFragment#AUDIO_COLUMN} columns for every row.
+ * This gives the count, the row order, and everything section indexers need, without
+ * filling a full CursorWindow.
+ *
+ * <p>Other columns are loaded in pages of {@link #PAGE_SIZE} rows by id (i.e. keyset paging on
+ * the primary key), only when a row's data is read. At most {@link #MAX_PAGES} pages are kept,
+ * and the next page in the scroll direction is prefetched in the background.
+ *
+ * <p>The UI thread never queries: a row on a page that isn't loaded yet (e.g. after a
+ * fast-scroll jump) reads as blank while the page loads in the background, and then
+ * {@link DataSetObserver}s are notified so the list redraws.
+ *
+ * <p>The {@link SectionTable} is built from the key values, so indexers never load a page.
+ */
+public class PagedCursor extends AbstractCursor implements SectionTable.Source {
+    private static final String TAG = "PagedCursor";
+    public static final int PAGE_SIZE = 64;
+    public static final int MAX_PAGES = 8;
+    private static final String ID_COLUMN = "_id";
+    private static final String[] KEY_COLUMNS =
+            {ID_COLUMN, SQL.INDEX_COLUMN, CursorListFragment.AUDIO_COLUMN};
+
+    private final MinutesDb mDb;
+    private final SQL.Query mQuery;
+    private final String[] mQueryArgs;
+    private final Object mIdColumn;
+    private final String[] mColumnNames;
+    private final int[] mKeyColumns; // Index in mKeyValues for each column, or -1
+    private final long[] mIds; // Id for each row
+    private final String[][] mKeyValues; // [key column][row]
+    private final Map<Integer, String[][]> mPages; // page: [row in page][column]
+    private final Map<Integer, Integer> mLoading = new HashMap<>(); // Page, queued priority
+    private final Set<Integer> mMissed = new HashSet<>(); // Pages read before they were loaded
+    private final String[] mBlankRow;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final DataSetObservable mPageObservable = new DataSetObservable();
+    private final SectionTable mSectionTable;
+    private int mDirection = 1;
+
+    private PagedCursor(MinutesDb db, SQL.Query query, String[] queryArgs, Object idColumn,
+                        String[] columnNames, int[] keyColumns, long[] ids, String[][] keyValues) {
+        mDb = db;
+        mQuery = query;
+        mQueryArgs = queryArgs;
+        mIdColumn = idColumn;
+        mColumnNames = columnNames;
+        mKeyColumns = keyColumns;
+        mIds = ids;
+        mKeyValues = keyValues;
+        mBlankRow = new String[columnNames.length];
+        int indexKey = Arrays.asList(columnNames).indexOf(SQL.INDEX_COLUMN);
+        mSectionTable = indexKey != -1 && keyColumns[indexKey] != -1 ?
+                SectionTable.build(keyValues[keyColumns[indexKey]]) : null;
+        // Access-ordered LRU
+        mPages = new LinkedHashMap<Integer, String[][]>(MAX_PAGES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String[][]> eldest) {
+                return size() > MAX_PAGES;
+            }
+        };
+    }
+
+    /**
+     * Runs the key query for a paged cursor.
+     *
+     * @param db database
+     * @param query list query, which must {@code SELECT} a unique {@code _id} column
+     * @param cancellationSignal signal to abort the key query (may be null)
+     * @param queryArgs query args
+     * @return a new PagedCursor, or {@code null} if the query can't be paged
+     */
+    public static PagedCursor create(MinutesDb db, SQL.Query query,
+                                     CancellationSignal cancellationSignal, String... queryArgs) {
+        Object idColumn = query.getColumn(ID_COLUMN);
+        if (idColumn == null || query.union != null)
+            return null;
+        // Get column names without loading rows
+        String[] columnNames;
+        Cursor cursor = db.query(query.copy().limit(0), cancellationSignal, queryArgs);
+        try {
+            columnNames = cursor.getColumnNames();
+        } finally {
+            cursor.close();
+        }
+        List<String> keyNames = new ArrayList<>();
+        for (String name : KEY_COLUMNS)
+            if (query.getColumn(name) != null)
+                keyNames.add(name);
+        int[] keyColumns = new int[columnNames.length];
+        for (int i = 0; i < columnNames.length; i++)
+            keyColumns[i] = keyNames.indexOf(columnNames[i]);
+        // Load keys for every row
+        SQL.Query keyQuery = query.copyColumns(keyNames.toArray(new String[keyNames.size()]));
+        cursor = QueryCache.getInstance().query(db, keyQuery, cancellationSignal, queryArgs);
+        try {
+            int count = cursor.getCount();
+            long[] ids = new long[count];
+            String[][] keyValues = new String[keyNames.size()][count];
+            int idIndex = cursor.getColumnIndex(ID_COLUMN);
+            int[] keyIndexes = new int[keyNames.size()];
+            for (int k = 0; k < keyIndexes.length; k++)
+                keyIndexes[k] = cursor.getColumnIndex(keyNames.get(k));
+            while (cursor.moveToNext()) {
+                int row = cursor.getPosition();
+                ids[row] = cursor.getLong(idIndex);
+                for (int k = 0; k < keyIndexes.length; k++)
+                    keyValues[k][row] = cursor.getString(keyIndexes[k]);
+            }
+            return new PagedCursor(db, query, queryArgs, idColumn, columnNames, keyColumns,
+                                   ids, keyValues);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Page loading
+    //-------------
+    // Gets the row for the current position, loading its page if necessary
+    private String[] getRow() {
+        if (mPos < 0 || mPos >= mIds.length)
+            throw new IndexOutOfBoundsException("Invalid cursor position: " + mPos);
+        int page = mPos / PAGE_SIZE;
+        boolean isUiThread = Looper.myLooper() == Looper.getMainLooper();
+        String[][] rows;
+        synchronized (mPages) {
+            rows = mPages.get(page);
+            if (rows == null && isUiThread)
+                mMissed.add(page);
+        }
+        if (rows == null) {
+            if (isUiThread) {
+                // Don't query on the UI thread; redraw when the page is loaded
+                load(page, MinutesLoader.PRIORITY_LIST);
+                return mBlankRow;
+            }
+            rows = loadPage(page);
+            synchronized (mPages) {
+                mPages.put(page, rows);
+            }
+        }
+        prefetch(page + mDirection);
+        return rows[mPos - page * PAGE_SIZE];
+    }
+
+    // Query a page of rows by id
+    private String[][] loadPage(int page) {
+        int start = page * PAGE_SIZE;
+        int end = Math.min(mIds.length, start + PAGE_SIZE);
+        Long[] pageIds = new Long[end - start];
+        Map<Long, Integer> rowForId = new HashMap<>();
+        for (int row = start; row < end; row++) {
+            pageIds[row - start] = mIds[row];
+            rowForId.put(mIds[row], row - start);
+        }
+        String[][] rows = new String[end - start][];
+        Cursor cursor = mDb.query(mQuery.copy().where(mIdColumn, "IN", pageIds), mQueryArgs);
+        try {
+            int idIndex = cursor.getColumnIndex(ID_COLUMN);
+            while (cursor.moveToNext()) {
+                Integer row = rowForId.get(cursor.getLong(idIndex));
+                if (row == null)
+                    continue;
+                String[] values = new String[mColumnNames.length];
+                for (int col = 0; col < values.length; col++)
+                    values[col] = cursor.getString(col);
+                rows[row] = values;
+            }
+        } finally {
+            cursor.close();
+        }
+        // Rows that have disappeared are blank
+        for (int row = 0; row < rows.length; row++)
+            if (rows[row] == null)
+                rows[row] = new String[mColumnNames.length];
+        return rows;
+    }
+
+    // Load the next page in the background
+    private void prefetch(int page) {
+        if (page < 0 || page * PAGE_SIZE >= mIds.length)
+            return;
+        load(page, MinutesLoader.PRIORITY_PREFETCH);
+    }
+
+    // Load a page in the background, notifying observers if it was read while missing
+    // A page that is queued as a prefetch is queued again if it is needed sooner
+    private void load(final int page, int priority) {
+        synchronized (mPages) {
+            Integer queued = mLoading.get(page);
+            if (mPages.containsKey(page) || (queued != null && queued <= priority))
+                return;
+            mLoading.put(page, priority);
+        }
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                boolean isMissed;
+                try {
+                    boolean isLoaded;
+                    synchronized (mPages) {
+                        isLoaded = mPages.containsKey(page); // By the other queued task
+                    }
+                    if (! isLoaded && ! isClosed()) {
+                        String[][] rows = loadPage(page);
+                        synchronized (mPages) {
+                            if (! mPages.containsKey(page))
+                                mPages.put(page, rows);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Error loading page " + page, e);
+                } finally {
+                    synchronized (mPages) {
+                        mLoading.remove(page);
+                        isMissed = mMissed.remove(page);
+                    }
+                }
+                if (isMissed) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (! isClosed())
+                                mPageObservable.notifyChanged();
+                        }
+                    });
+                }
+            }
+        };
+        LoaderExecutor.getInstance().getExecutor(priority, null).execute(task);
+    }
+
+    @Override
+    public SectionTable getSectionTable() {
+        return mSectionTable;
+    }
+
+    // Cursor overrides
+    //-----------------
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (newPosition != oldPosition)
+            mDirection = newPosition > oldPosition ? 1 : -1;
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        return mIds.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        int key = mKeyColumns[column];
+        if (key != -1) {
+            checkPosition();
+            return mKeyValues[key][mPos];
+        }
+        return getRow()[column];
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        String value = getString(column);
+        if (value == null)
+            return 0;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return (long) getDouble(column);
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        String value = getString(column);
+        if (value == null)
+            return 0;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public int getType(int column) {
+        return isNull(column) ? FIELD_TYPE_NULL : FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return getString(column) == null;
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+        super.registerDataSetObserver(observer);
+        mPageObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+        super.unregisterDataSetObserver(observer);
+        mPageObservable.unregisterObserver(observer);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        synchronized (mPages) {
+            mPages.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return TAG + Arrays.toString(mColumnNames) + ": " + mIds.length + " rows";
+    }
+}
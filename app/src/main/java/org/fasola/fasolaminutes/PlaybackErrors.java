@@ -0,0 +1,190 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Classifies {@link MediaPlayer} errors and decides whether (and when) to retry.
+ *
+ * <p>Transient failures (timeouts and other I/O errors) are retried with jittered exponential
+ * backoff. Permanent failures (HTTP 404/410 and decoder errors) are not retried.
+ *
+ * <p>When songs from more than one url can't connect to their host (see
+ * {@link #onConnectionFailure}), the host is remembered as down for a while, so that later
+ * songs from the same server can be skipped without trying them. A single song that runs out
+ * of retries (e.g. a missing file) doesn't mark its host as down.
+ */
+public class PlaybackErrors {
+    // Failure types
+    public static final int FAILURE_UNKNOWN = 0;
+    public static final int FAILURE_NETWORK_DOWN = 1;
+    public static final int FAILURE_NOT_FOUND = 2;
+    public static final int FAILURE_DECODER = 3;
+    public static final int FAILURE_TIMEOUT = 4;
+
+    private static final int BASE_DELAY_MS = 500;
+    private static final int MAX_DELAY_MS = 30000;
+    private static final int MAX_RETRIES = 6;
+    private static final long HOST_DOWN_MS = 5 * 60 * 1000;
+
+    // Singleton
+    private static PlaybackErrors instance = null;
+
+    private PlaybackErrors() {
+    }
+
+    public static synchronized PlaybackErrors getInstance() {
+        if (instance == null)
+            instance = new PlaybackErrors();
+        return instance;
+    }
+
+    private final Random mRandom = new Random();
+    // Time (SystemClock.elapsedRealtime) until which a host is considered down
+    private final Map<String, Long> mDownHosts = new HashMap<>();
+    // Urls that recently failed to connect, by host
+    private final Map<String, Set<String>> mFailedUrls = new HashMap<>();
+
+    /**
+     * Classifies a playback error.
+     *
+     * @param isConnected is there a network connection?
+     * @param what error from {@link MediaPlayer.OnErrorListener#onError}
+     * @param extra extra code from {@link MediaPlayer.OnErrorListener#onError}
+     * @param downloadError error from downloading the song, if any
+     *                      (see {@link AudioCache#getDownloadError})
+     * @return {@code FAILURE_*} type
+     */
+    public static int classify(boolean isConnected, int what, int extra, IOException downloadError) {
+        if (! isConnected)
+            return FAILURE_NETWORK_DOWN;
+        if (downloadError instanceof AudioCache.HttpStatusException) {
+            int status = ((AudioCache.HttpStatusException) downloadError).status;
+            if (status == 404 || status == 410)
+                return FAILURE_NOT_FOUND;
+        }
+        if (downloadError instanceof SocketTimeoutException || extra == MediaPlayer.MEDIA_ERROR_TIMED_OUT)
+            return FAILURE_TIMEOUT;
+        if (extra == MediaPlayer.MEDIA_ERROR_MALFORMED || extra == MediaPlayer.MEDIA_ERROR_UNSUPPORTED)
+            return FAILURE_DECODER;
+        return FAILURE_UNKNOWN;
+    }
+
+    /**
+     * Returns {@code true} for download errors where the host couldn't be reached at all
+     * (unknown host, refused or unreachable, or a connect timeout).
+     */
+    public static boolean isConnectionFailure(IOException downloadError) {
+        if (downloadError instanceof UnknownHostException ||
+                downloadError instanceof ConnectException ||
+                downloadError instanceof NoRouteToHostException)
+            return true;
+        // HttpURLConnection doesn't have a separate type for connect timeouts
+        return downloadError instanceof SocketTimeoutException &&
+               String.valueOf(downloadError.getMessage()).contains("connect");
+    }
+
+    /** Returns {@code true} for failures that won't go away by retrying. */
+    public static boolean isPermanent(int failure) {
+        return failure == FAILURE_NOT_FOUND || failure == FAILURE_DECODER;
+    }
+
+    /** Returns a name for logging. */
+    public static String toString(int failure) {
+        switch (failure) {
+            case FAILURE_NETWORK_DOWN:
+                return "network down";
+            case FAILURE_NOT_FOUND:
+                return "not found";
+            case FAILURE_DECODER:
+                return "decoder";
+            case FAILURE_TIMEOUT:
+                return "timeout";
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * Gets the delay before retrying a song.
+     *
+     * @param url song url
+     * @param failure {@code FAILURE_*} type (not {@code FAILURE_NETWORK_DOWN})
+     * @param attempt number of sequential failures for this song (starting at 1)
+     * @return delay in milliseconds, or -1 to skip the song
+     */
+    public long getRetryDelay(String url, int failure, int attempt) {
+        if (isPermanent(failure))
+            return -1;
+        if (attempt > MAX_RETRIES)
+            return -1;
+        // Equal jitter: half the exponential delay, plus up to the other half at random
+        long delay = Math.min(MAX_DELAY_MS, (long) BASE_DELAY_MS << (attempt - 1));
+        synchronized (mRandom) {
+            return delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        }
+    }
+
+    /** Forgets failures for the song's host after a successful load. */
+    public synchronized void onSuccess(String url) {
+        String host = getHost(url);
+        mDownHosts.remove(host);
+        mFailedUrls.remove(host);
+    }
+
+    /**
+     * Records that a song couldn't connect to its host (see {@link #isConnectionFailure}).
+     *
+     * <p>Once songs from more than one url have failed, the host is marked as down.
+     *
+     * @param url song url
+     */
+    public synchronized void onConnectionFailure(String url) {
+        String host = getHost(url);
+        Set<String> urls = mFailedUrls.get(host);
+        if (urls == null) {
+            urls = new HashSet<>();
+            mFailedUrls.put(host, urls);
+        }
+        urls.add(url);
+        if (urls.size() > 1) {
+            mFailedUrls.remove(host);
+            mDownHosts.put(host, SystemClock.elapsedRealtime() + HOST_DOWN_MS);
+        }
+    }
+
+    /** Returns {@code true} if the song's host has recently failed. */
+    public synchronized boolean isHostDown(String url) {
+        String host = getHost(url);
+        Long until = mDownHosts.get(host);
+        if (until == null)
+            return false;
+        if (SystemClock.elapsedRealtime() >= until) {
+            mDownHosts.remove(host);
+            return false;
+        }
+        return true;
+    }
+
+    private static String getHost(String url) {
+        String host = url != null ? Uri.parse(url).getHost() : null;
+        return host != null ? host.toLowerCase() : "";
+    }
+}
@@ -22,6 +22,7 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 import androidx.core.app.TaskStackBuilder;
@@ -37,8 +38,9 @@ import android.widget.Toast;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * A singleton foreground service for music playback
@@ -52,8 +54,6 @@ public class PlaybackService extends Service
             AudioManager.OnAudioFocusChangeListener {
 
     private static final String TAG = "PlaybackService";
-    private static final int ERROR_LIMIT = 100;
-    private static final int ERROR_DELAY_MS = 500;
 
     /** Enqueue songs */
     public static final String ACTION_ENQUEUE_MEDIA = "org.fasola.fasolaminutes.media.ENQUEUE";
@@ -97,15 +97,26 @@ public class PlaybackService extends Service
     };
 
     MediaPlayer mMediaPlayer;
+    MediaPlayer mNextPlayer; // Prepares the next song while this one plays (gapless playback)
+    Playlist.Song mNextSong; // Song loaded in mNextPlayer
+    boolean mIsNextPrepared;
+    boolean mIsCached; // Is the song playing from the AudioCache?
+    boolean mIsNextCached;
     Control mControl;
     boolean mIsPrepared;
     boolean mIsLoading;
+    boolean mIsWaitingForSong; // Current song is restored but not loaded yet
     boolean mIsRemoved; // Was the current song removed from the playlist?
     boolean mShouldPlay; // Should we play the song once it is prepared?
     ConnectivityManager mConnectivityManager;
     int mConnectionType = -1;
     Playlist.Song mSong; // Prepared song
-    int mErrorCount; // Number of sequential errors
+    int mErrorCount; // Number of sequential errors for this song
+    volatile int mEnqueueGeneration; // Incremented to cancel pending enqueueLead batches
+    private static final int ENQUEUE_BATCH_SIZE = 250;
+    // One thread, so enqueued lists are added whole and in the order they were requested
+    private final ExecutorService mEnqueueExecutor = Executors.newSingleThreadExecutor();
+    final Handler mRetryHandler = new Handler();
     NotificationManagerCompat mNotificationManager;
     Notification mNotification;
     private static final int NOTIFICATION_ID = 1;
@@ -163,6 +174,7 @@ public class PlaybackService extends Service
             int play = -1;
             if (action.equals(ACTION_PLAY_MEDIA)) {
                 // If we're playing songs, remove all previous songs from the playlist
+                ++mEnqueueGeneration;
                 Playlist.getInstance().clear();
                 updateSong();
                 play = intent.getIntExtra(EXTRA_PLAY_INDEX, 0);
@@ -216,6 +228,7 @@ public class PlaybackService extends Service
     public void onDestroy() {
         stop();
         mObserver.unregister();
+        mEnqueueExecutor.shutdown();
         mInstance = null;
     }
 
@@ -293,10 +306,14 @@ public class PlaybackService extends Service
      * This is not a MediaPlayerControl override
      */
     public void stop() {
+        ++mEnqueueGeneration; // Don't add songs (or start playing) after stopping
         mSong = null;
         mAudioManager.abandonAudioFocus(this);
         mMediaSession.setActive(false);
         mMediaSession.release();
+        mRetryHandler.removeCallbacks(mRetry);
+        releaseNextPlayer();
+        AudioCache.getInstance(this).prefetch(new ArrayList<String>());
         if (mMediaPlayer != null) {
             mMediaPlayer.release();
             mMediaPlayer = null;
@@ -304,6 +321,7 @@ public class PlaybackService extends Service
         mShouldPlay = false;
         mIsPrepared = false;
         mIsLoading = false;
+        mIsWaitingForSong = false;
         mNotification = null;
         LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_PAUSED));
         stopForeground(true);
@@ -370,15 +388,31 @@ public class PlaybackService extends Service
     //---------------------------------------------------------------------------------------------
     //endregion
 
-    /** Updates the current song from the playlist position. */
+    /**
+     * Updates the current song from the playlist position.
+     *
+     * <p>If the new song is already prepared in the next player, that player is used.
+     */
     public void updateSong() {
-        mSong = Playlist.getInstance().getCurrent();
-        ensurePlayer();
-        if (mMediaPlayer.isPlaying())
-            mMediaPlayer.stop();
-        mMediaPlayer.reset();
-        mIsPrepared = false;
-        mIsLoading = false;
+        Playlist.Song song = Playlist.getInstance().getCurrent();
+        if (song != mSong)
+            mErrorCount = 0;
+        mSong = song;
+        mRetryHandler.removeCallbacks(mRetry);
+        mIsWaitingForSong = false;
+        if (mSong != null && mSong == mNextSong && mIsNextPrepared) {
+            promoteNextPlayer();
+            prepareNext();
+            prefetch();
+        }
+        else {
+            ensurePlayer();
+            if (mMediaPlayer.isPlaying())
+                mMediaPlayer.stop();
+            mMediaPlayer.reset();
+            mIsPrepared = false;
+            mIsLoading = false;
+        }
         mIsRemoved = false;
         updateNotification();
         updateMediaSession();
@@ -397,11 +431,23 @@ public class PlaybackService extends Service
         updateSong();
         if (mSong == null)
             return false;
+        // Already prepared by the next player
+        if (mIsPrepared) {
+            LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_PREPARED));
+            if (mShouldPlay)
+                start();
+            return true;
+        }
         // Prepare player
         LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_LOADING));
         mIsLoading = true;
+        // A restored song has no url until it is loaded (the observer prepares it then)
+        if (! mSong.isLoaded()) {
+            mIsWaitingForSong = true;
+            return true;
+        }
         try {
-            mMediaPlayer.setDataSource(mSong.url);
+            mIsCached = AudioCache.getInstance(this).setDataSource(mMediaPlayer, mSong.url);
         } catch (IOException | IllegalStateException e) {
             // TODO: something useful... a broadcast?
             Log.e(TAG, "Exception with url: " + mSong.url);
@@ -413,68 +459,221 @@ public class PlaybackService extends Service
     /**
      * Enqueues and optionally starts playback of one or more songs
      *
-     * <p>This method queries (async) the database for songs and adds them to the playlist
+     * <p>This method queries (async) the database for songs and adds them to the playlist.
+     * Values are queried in batches through a temp table (see {@link MinutesDb#queryValues}),
+     * so long lists don't run into SQLite's limits, and each batch is added to the playlist as
+     * soon as it is loaded, so playback can start before the whole list is loaded.
+     * Requests are loaded one at a time, so lists are never interleaved or reordered.
      *
      * @param playIndex index in {@code args} to start playing, or -1 to ignore
-     * @param column {@link SQL.Column} or {@code String} column name for a WHERE clause
-     * @param args   values for the IN predicate for a WHERE clause
+     * @param column {@link SQL.Column} to match
+     * @param args   values to match, in playlist order
      * @see Playlist
-     * @see Playlist#getSongQuery(Object, Object...)
-     * @see Playlist#addAll(Cursor)
+     * @see Playlist#getValuesSongQuery(SQL.Column)
      */
     public void enqueueLead(final int playIndex, final SQL.Column column, final Object... args) {
-        MinutesLoader loader = new MinutesLoader(Playlist.getSongQuery(column, args));
-        loader.startLoading(new MinutesLoader.FinishedCallback() {
+        final int generation = mEnqueueGeneration;
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final SQL.Query query = Playlist.getValuesSongQuery(column);
+        mEnqueueExecutor.execute(new Runnable() {
+            boolean mFoundPlayIndex = playIndex < 0;
+
             @Override
-            public void onLoadFinished(Cursor cursor) {
-                // Add all songs in args to the playlist in order.
-                // Doing this using SQL would require a temp table and an extra join.
-                // Creating a map and sorting manually is a lot faster.
-
-                // Map audioUrl or leadId to Playlist.Song
-                if (! cursor.moveToFirst())
-                    return;
-                int colIndex = cursor.getColumnIndex(column.getKey());
-                HashMap<Object, Playlist.Song> songMap = new HashMap<>();
-                do {
-                    songMap.put(cursor.getString(colIndex), new Playlist.Song(cursor));
-                } while (cursor.moveToNext());
-
-                // Put songs in order
-                ArrayList<Playlist.Song> songs = new ArrayList<>(args.length);
-                for (Object arg : args)
-                    songs.add(songMap.get(arg));
-
-                // Add to the playlist and start playback
-                Playlist pl = Playlist.getInstance();
-                pl.addAll(songs);
-                if (playIndex > -1) {
-                    pl.moveToPosition(playIndex);
-                    updateSong();
-                    if (mShouldPlay)
-                        prepare();
+            public void run() {
+                for (int start = 0; start < args.length; start += ENQUEUE_BATCH_SIZE) {
+                    if (generation != mEnqueueGeneration)
+                        return; // The playlist was replaced
+                    int end = Math.min(args.length, start + ENQUEUE_BATCH_SIZE);
+                    final ArrayList<Playlist.Song> songs = new ArrayList<>(end - start);
+                    // Songs are in args order; find the song to play (or the next one if it is missing)
+                    final int playPos = MinutesDb.getInstance().queryValues(args, start, end, query,
+                            new MinutesDb.CursorReader<Integer>() {
+                                @Override
+                                public Integer read(Cursor cursor) {
+                                    int posColumn = cursor.getColumnCount() - 1;
+                                    int playPos = -1;
+                                    while (cursor.moveToNext()) {
+                                        if (! mFoundPlayIndex && cursor.getInt(posColumn) >= playIndex) {
+                                            mFoundPlayIndex = true;
+                                            playPos = songs.size();
+                                        }
+                                        songs.add(new Playlist.Song(cursor));
+                                    }
+                                    return playPos;
+                                }
+                            });
+                    if (songs.isEmpty())
+                        continue;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            addSongs(generation, songs, playPos);
+                        }
+                    });
                 }
             }
         });
     }
 
+    // Add a batch of songs from enqueueLead and start playback
+    private void addSongs(int generation, List<Playlist.Song> songs, int playPos) {
+        if (generation != mEnqueueGeneration)
+            return;
+        Playlist pl = Playlist.getInstance();
+        int size = pl.size();
+        // One notification for the new songs and the cursor
+        pl.beginBatch();
+        pl.addAll(songs);
+        if (playPos > -1)
+            pl.moveToPosition(size + playPos);
+        pl.commitBatch();
+        if (playPos > -1) {
+            updateSong();
+            if (mShouldPlay)
+                prepare();
+        }
+    }
+
     /**
      * Constructs a MediaPlayer if necessary
      *
      * @return mMediaPlayer for chaining
      */
     private MediaPlayer ensurePlayer() {
-        if (mMediaPlayer == null) {
-            mMediaPlayer = new MediaPlayer();
-            mMediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            mMediaPlayer.setOnPreparedListener(this);
-            mMediaPlayer.setOnCompletionListener(this);
-            mMediaPlayer.setOnErrorListener(this);
-            mMediaPlayer.setOnInfoListener(this);
-        }
+        if (mMediaPlayer == null)
+            mMediaPlayer = createPlayer();
         return mMediaPlayer;
     }
 
+    // Both players use this service's callbacks, which check which player is calling
+    private MediaPlayer createPlayer() {
+        MediaPlayer player = new MediaPlayer();
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        player.setOnPreparedListener(this);
+        player.setOnCompletionListener(this);
+        player.setOnErrorListener(this);
+        player.setOnInfoListener(this);
+        return player;
+    }
+
+    // Gapless playback
+    //---------------------------------------------------------------------------------------------
+    /** Returns the song after the prepared song in the playlist, or {@code null} */
+    private Playlist.Song getNextSong() {
+        Playlist playlist = Playlist.getInstance();
+        if (mSong == null || playlist.getCurrent() != mSong || ! playlist.hasNext())
+            return null;
+        Playlist.Song next = playlist.get(playlist.getPosition() + 1);
+        return next.isLoaded() ? next : null;
+    }
+
+    /**
+     * Prepares the next song in the playlist in the background (async)
+     *
+     * <p>Once both players are prepared, the next player is chained to the current player with
+     * {@link MediaPlayer#setNextMediaPlayer}, so it starts as soon as the current song completes.
+     */
+    private void prepareNext() {
+        Playlist.Song next = getNextSong();
+        if (next != null && next == mNextSong) {
+            if (mIsNextPrepared)
+                linkNextPlayer();
+            return;
+        }
+        releaseNextPlayer();
+        // Cached songs don't need to stream
+        if (next == null || (! AudioCache.getInstance(this).contains(next.url) &&
+                             (! ConnectionStatus.canPlay(this) ||
+                              PlaybackErrors.getInstance().isHostDown(next.url))))
+            return;
+        mNextSong = next;
+        mNextPlayer = createPlayer();
+        try {
+            mIsNextCached = AudioCache.getInstance(this).setDataSource(mNextPlayer, next.url);
+            mNextPlayer.prepareAsync();
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "Exception preparing next url: " + next.url);
+            releaseNextPlayer();
+        }
+    }
+
+    // Chain the next player to the current player
+    private void linkNextPlayer() {
+        if (! mIsPrepared || mMediaPlayer == null || mNextPlayer == null)
+            return;
+        try {
+            mMediaPlayer.setNextMediaPlayer(mNextPlayer);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            Log.w(TAG, "Unable to chain the next player", e);
+        }
+    }
+
+    /** Releases the next player (songs will be prepared one at a time as usual) */
+    private void releaseNextPlayer() {
+        if (mNextPlayer == null)
+            return;
+        if (mIsPrepared && mMediaPlayer != null) {
+            try {
+                mMediaPlayer.setNextMediaPlayer(null);
+            } catch (IllegalStateException e) {
+                // Current player isn't in a valid state; nothing is chained
+            }
+        }
+        mNextPlayer.release();
+        mNextPlayer = null;
+        mNextSong = null;
+        mIsNextPrepared = false;
+    }
+
+    /** Replaces the current player with the prepared next player */
+    private void promoteNextPlayer() {
+        MediaPlayer player = mMediaPlayer;
+        mMediaPlayer = mNextPlayer;
+        mIsCached = mIsNextCached;
+        mNextPlayer = null;
+        mNextSong = null;
+        mIsNextPrepared = false;
+        if (player != null)
+            player.release();
+        mIsPrepared = true;
+        mIsLoading = false;
+        mErrorCount = 0;
+    }
+
+    /**
+     * Downloads upcoming songs to the {@link AudioCache} in the background
+     *
+     * <p>The number of songs depends on the connection
+     * (see {@link ConnectionStatus#getPrefetchCount(Context)}).
+     */
+    private void prefetch() {
+        int count = mSong != null ? ConnectionStatus.getPrefetchCount(this) : 0;
+        Playlist playlist = Playlist.getInstance();
+        List<String> urls = new ArrayList<>(count);
+        for (int i = playlist.getPosition() + 1; i < playlist.size() && urls.size() < count; i++) {
+            // The next player streams its own song
+            Playlist.Song song = playlist.get(i);
+            if (song.isLoaded() && song != mNextSong &&
+                    ! PlaybackErrors.getInstance().isHostDown(song.url))
+                urls.add(song.url);
+        }
+        AudioCache.getInstance(this).prefetch(urls);
+    }
+
+    /** Releases or prepares the next player after playlist changes */
+    private void updateNextPlayer() {
+        Playlist.Song next = getNextSong();
+        // Keep the next song if it is the new current song, since updateSong() will use it
+        if (mNextSong != null && mNextSong != next &&
+                mNextSong != Playlist.getInstance().getCurrent())
+            releaseNextPlayer();
+        if (mNextSong == null && next != null && mIsPrepared)
+            prepareNext();
+        if (mIsPrepared)
+            prefetch();
+    }
+    //---------------------------------------------------------------------------------------------
+
     /** Creates a new notification or returns an existing notification
      *
      * @return {@link Notification} that controls playback
@@ -654,13 +853,27 @@ public class PlaybackService extends Service
         boolean mWasPlugged = false;
 
 
-        // Pause playback when song is removed from playlist
+        // Handle each change once, even if it both edits the playlist and moves the cursor
         @Override
-        public void onPlaylistChanged() {
-            if (mSong != null && ! Playlist.getInstance().contains(mSong) && !mIsRemoved) {
-                mIsRemoved = true;
-                pause();
+        public void onChange(Playlist.Change change) {
+            if (change.isPlaylistChanged()) {
+                // Pause playback when song is removed from playlist
+                if (mSong != null && ! Playlist.getInstance().contains(mSong) && !mIsRemoved) {
+                    mIsRemoved = true;
+                    pause();
+                }
+                // Prepare a restored song once it is loaded (or skip it if it wasn't found)
+                if (mIsWaitingForSong && ! mIsRemoved) {
+                    if (mSong.isLoaded())
+                        prepare();
+                    else if (mSong.status == Playlist.Song.STATUS_ERROR) {
+                        mIsWaitingForSong = false;
+                        playNext();
+                    }
+                }
             }
+            // Keep the next player in sync with the playlist
+            updateNextPlayer();
         }
 
         // Pause playback when headset is unplugged or when wifi is unavailable
@@ -688,6 +901,9 @@ public class PlaybackService extends Service
                     pause();
                 else
                     updateNotification(); // pause() updates the notification already.
+                // Prefetch limits depend on the connection
+                if (mIsPrepared)
+                    prefetch();
             }
         }
     };
@@ -696,24 +912,67 @@ public class PlaybackService extends Service
     //---------------------------------------------------------------------------------------------
     @Override
     public void onPrepared(MediaPlayer mp) {
+        if (mp == mNextPlayer) {
+            Log.v(TAG, "Prepared next song");
+            mIsNextPrepared = true;
+            if (! mIsNextCached)
+                PlaybackErrors.getInstance().onSuccess(mNextSong.url);
+            linkNextPlayer();
+            return;
+        }
         Log.v(TAG, "Prepared; starting playback");
         mIsPrepared = true;
         mIsLoading = false;
         mErrorCount = 0;
-        if (mSong != null)
-            mSong.status = Playlist.Song.STATUS_OK;
+        if (mSong != null) {
+            Playlist.getInstance().setStatus(mSong, Playlist.Song.STATUS_OK);
+            if (! mIsCached)
+                PlaybackErrors.getInstance().onSuccess(mSong.url);
+        }
         LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_PREPARED));
         if (mShouldPlay)
             start();
+        prepareNext();
+        prefetch();
     }
 
     @Override
     public void onCompletion(MediaPlayer mp) {
+        if (mp != mMediaPlayer)
+            return;
         Log.v(TAG, "Complete");
         mIsPrepared = false;
         LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_COMPLETED));
-        // Start the next
-        if (Playlist.getInstance().moveToNext() != null)
+        // The chained next player has already started
+        if (mIsNextPrepared && mNextPlayer.isPlaying()) {
+            Log.v(TAG, "Continuing with the next song");
+            Playlist.Song song = mNextSong;
+            mSong = song;
+            mIsRemoved = false;
+            promoteNextPlayer();
+            Playlist.getInstance().moveToPosition(Playlist.getInstance().indexOf(song));
+            LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_NEW_SONG));
+            LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_PREPARED));
+            LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_PLAYING));
+            updateNotification();
+            updateMediaSession();
+            prepareNext();
+            prefetch();
+            return;
+        }
+        playNext();
+    }
+
+    // Start the next song, skipping songs from hosts that are down (unless they are cached)
+    private void playNext() {
+        Playlist.Song next;
+        while ((next = Playlist.getInstance().moveToNext()) != null &&
+                PlaybackErrors.getInstance().isHostDown(next.url) &&
+                ! AudioCache.getInstance(this).contains(next.url)) {
+            Log.w(TAG, "Skipping song from failed host: " + next.url);
+            Playlist.getInstance().setStatus(next, Playlist.Song.STATUS_ERROR);
+        }
+        if (next != null)
             prepare();
         else {
             Log.v(TAG, "End of playlist: stopping service");
@@ -723,34 +982,61 @@ public class PlaybackService extends Service
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
-        if (! isConnected()) {
+        if (mp == mNextPlayer) {
+            // Drop the next player; the song will be prepared as usual when it comes up
+            Log.w(TAG, "Error preparing next song: " + String.valueOf(what));
+            if (mIsNextCached)
+                AudioCache.getInstance(this).remove(mNextSong.url);
+            releaseNextPlayer();
+            return true;
+        }
+        // A cached file that doesn't play is damaged; stream it next time
+        if (mIsCached && mSong != null) {
+            Log.w(TAG, "Removing cached file for " + mSong.url);
+            AudioCache.getInstance(this).remove(mSong.url);
+            mIsCached = false;
+        }
+        String url = mSong != null ? mSong.url : null;
+        IOException downloadError =
+                url != null ? AudioCache.getInstance(this).getDownloadError(url) : null;
+        int failure = PlaybackErrors.classify(isConnected(), what, extra, downloadError);
+        if (failure == PlaybackErrors.FAILURE_NETWORK_DOWN) {
             pause();
             return true;
         }
-        Log.e(TAG, "Error: " + String.valueOf(what));
-        if (mSong != null)
-            mSong.status = Playlist.Song.STATUS_ERROR;
+        if (PlaybackErrors.isConnectionFailure(downloadError))
+            PlaybackErrors.getInstance().onConnectionFailure(url);
+        Log.e(TAG, "Error: " + String.valueOf(what) + ", " + String.valueOf(extra) +
+                   " (" + PlaybackErrors.toString(failure) + ")");
         mIsPrepared = false;
+        if (mSong != null)
+            Playlist.getInstance().setStatus(mSong, Playlist.Song.STATUS_ERROR);
         ++mErrorCount;
         LocalBroadcastManager.getInstance(this).sendBroadcast(new Intent(BROADCAST_ERROR));
-        if (mErrorCount >= ERROR_LIMIT) {
+        long delay = url != null
+                ? PlaybackErrors.getInstance().getRetryDelay(url, failure, mErrorCount)
+                : -1;
+        if (delay < 0) {
             mErrorCount = 0;
             return false; // Give up on this song; move to the next
         }
-        // Try to load the same song a few times
-        Handler handler = new Handler();
-        handler.postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                if (mMediaPlayer != null)
-                    prepare();
-            }
-        }, ERROR_DELAY_MS);
+        // Retry transient failures with backoff
+        mRetryHandler.postDelayed(mRetry, delay);
         return true;
     }
 
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            if (mMediaPlayer != null)
+                prepare();
+        }
+    };
+
     @Override
     public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if (mp != mMediaPlayer)
+            return false;
         // Send broadcasts based on buffering state
         if (what == MediaPlayer.MEDIA_INFO_BUFFERING_START) {
             mIsLoading = true;
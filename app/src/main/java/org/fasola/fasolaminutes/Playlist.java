@@ -5,11 +5,17 @@
 
 package org.fasola.fasolaminutes;
 
+import android.content.Context;
 import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import androidx.annotation.NonNull;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Playlist of Songs
@@ -31,6 +37,11 @@ import java.util.Collection;
  *     <li> {@link #registerObserver(Observer)}
  *     <li> {@link #unregisterObserver(Observer)}
  * </ul>
+ *
+ * <p>Each change sends one notification with a {@link Change} describing it. Wrap several
+ * changes in {@link #beginBatch()} and {@link #commitBatch()} to send a single notification.
+ *
+ * <p>Changes are saved with a {@link PlaylistJournal} once {@link #restore(Context)} is called.
  */
 public class Playlist extends ArrayList<Playlist.Song> {
     /** Cursor position */
@@ -38,6 +49,12 @@ public class Playlist extends ArrayList<Playlist.Song> {
 
     // Observers
     private final PlaylistObservable mObservable = new PlaylistObservable();
+    private int mBatchDepth = 0;
+    private Change mChange; // Pending change while in a batch
+
+    // Persistence
+    private PlaylistJournal mJournal;
+    private static final int LOAD_BATCH_SIZE = 250;
 
     // Singleton
     static Playlist mInstance;
@@ -60,6 +77,7 @@ public class Playlist extends ArrayList<Playlist.Song> {
         public String year;
         public String url;
         public int status;
+        private boolean mIsLoaded;
 
         public static final int STATUS_OK = 0;
         public static final int STATUS_ERROR = 1;
@@ -80,6 +98,36 @@ public class Playlist extends ArrayList<Playlist.Song> {
             this.year = cursor.getString(6);
             this.url = cursor.getString(7);
             this.status = STATUS_OK;
+            this.mIsLoaded = true;
+        }
+
+        /**
+         * Constructs a placeholder for a restored song, which is loaded later.
+         *
+         * @param leadId lead id
+         * @param status {@code STATUS_*}
+         */
+        Song(long leadId, int status) {
+            this.leadId = leadId;
+            this.name = this.leaders = this.singing = this.date = this.year = "";
+            this.status = status;
+        }
+
+        /** Returns {@code false} for a restored song that hasn't been loaded from the database */
+        public boolean isLoaded() {
+            return mIsLoaded;
+        }
+
+        // Fill in a placeholder from a loaded song
+        void load(Song song) {
+            this.songId = song.songId;
+            this.name = song.name;
+            this.leaders = song.leaders;
+            this.singing = song.singing;
+            this.date = song.date;
+            this.year = song.year;
+            this.url = song.url;
+            this.mIsLoaded = true;
         }
     }
 
@@ -108,8 +156,46 @@ public class Playlist extends ArrayList<Playlist.Song> {
             .group(C.SongLeader.leadId);
     }
 
+    /**
+     * Returns a query for songs matching the values in {@link MinutesDb#VALUES_TABLE}.
+     *
+     * <p>Run with {@link MinutesDb#queryValues}. Songs are in the order of the values, with
+     * one song per value; the value's position is the last column.
+     *
+     * @param column {@link SQL.Column} to match with the values
+     * @return {@link SQL.Query}
+     */
+    public static SQL.Query getValuesSongQuery(SQL.Column column) {
+        return SQL.select(
+                C.SongLeader.songId,
+                C.SongLeader.leadId,
+                C.Song.fullName,
+                C.Leader.allNames,
+                C.Singing.name,
+                C.Singing.startDate,
+                C.Singing.year,
+                C.SongLeader.audioUrl,
+                MinutesDb.VALUES_POS)
+            .from(C.SongLeader)
+            .join(MinutesDb.VALUES_TABLE, MinutesDb.VALUES_VALUE + " = " + column)
+            .group(MinutesDb.VALUES_POS)
+            .order(MinutesDb.VALUES_POS, "ASC");
+    }
+
     /** Observer base class */
     public static class Observer {
+        /**
+         * Override to respond to the details of a change.
+         *
+         * <p>The default implementation calls the other methods.
+         */
+        public void onChange(Change change) {
+            if (change.isPlaylistChanged())
+                onPlaylistChanged();
+            if (change.isCursorChanged())
+                onCursorChanged();
+            onChanged();
+        }
         /** Override to respond when items are added or removed from the playlist. */
         public void onPlaylistChanged() {}
         /** Override to respond when the playlist cursor moves. */
@@ -118,6 +204,175 @@ public class Playlist extends ArrayList<Playlist.Song> {
         public void onChanged() {}
     }
 
+    /**
+     * Structural diff of the changes in one notification.
+     *
+     * <p>Operations are in order, and each index refers to the playlist after the operations
+     * before it. Adjacent operations are merged. A reset (e.g. {@link #clear()}) or a long batch
+     * replaces the operations, and observers should reload everything.
+     */
+    public static class Change {
+        public static final int INSERT = 0; // count songs inserted at index
+        public static final int REMOVE = 1; // count songs removed from index
+        public static final int MOVE = 2; // song moved from index to toIndex
+        public static final int UPDATE = 3; // count songs replaced or loaded at index
+
+        private static final int MAX_OPS = 64;
+
+        /** A single operation */
+        public static class Op {
+            public final int type;
+            public final int index;
+            public final int count;
+            public final int toIndex;
+
+            Op(int type, int index, int count, int toIndex) {
+                this.type = type;
+                this.index = index;
+                this.count = count;
+                this.toIndex = toIndex;
+            }
+        }
+
+        private final List<Op> mOps = new ArrayList<>();
+        private boolean mIsReset = false;
+        private final int mOldPosition;
+        private int mNewPosition;
+
+        Change(int position) {
+            mOldPosition = mNewPosition = position;
+        }
+
+        void add(int type, int index, int count, int toIndex) {
+            if (mIsReset || count == 0)
+                return;
+            if (! mOps.isEmpty()) {
+                Op last = mOps.get(mOps.size() - 1);
+                Op merged = null;
+                if (type == last.type) {
+                    if (type == INSERT && index >= last.index && index <= last.index + last.count)
+                        merged = new Op(INSERT, last.index, last.count + count, 0);
+                    else if (type == REMOVE && (index == last.index || index + count == last.index))
+                        merged = new Op(REMOVE, index, last.count + count, 0);
+                    else if (type == UPDATE && index <= last.index + last.count &&
+                             index + count >= last.index) {
+                        int start = Math.min(index, last.index);
+                        int end = Math.max(index + count, last.index + last.count);
+                        merged = new Op(UPDATE, start, end - start, 0);
+                    }
+                }
+                if (merged != null) {
+                    mOps.set(mOps.size() - 1, merged);
+                    return;
+                }
+            }
+            if (mOps.size() >= MAX_OPS)
+                reset();
+            else
+                mOps.add(new Op(type, index, count, toIndex));
+        }
+
+        void reset() {
+            mIsReset = true;
+            mOps.clear();
+        }
+
+        /** Returns the operations (empty for a reset). */
+        public List<Op> getOps() {
+            return Collections.unmodifiableList(mOps);
+        }
+
+        /** Was the whole playlist replaced? */
+        public boolean isReset() {
+            return mIsReset;
+        }
+
+        /** Were songs inserted, removed, or moved? */
+        public boolean isStructural() {
+            if (mIsReset)
+                return true;
+            for (Op op : mOps)
+                if (op.type != UPDATE)
+                    return true;
+            return false;
+        }
+
+        /** Did the playlist change? */
+        public boolean isPlaylistChanged() {
+            return mIsReset || ! mOps.isEmpty();
+        }
+
+        /** Did the cursor position change? */
+        public boolean isCursorChanged() {
+            return mOldPosition != mNewPosition;
+        }
+
+        /** Cursor position before the change */
+        public int getOldPosition() {
+            return mOldPosition;
+        }
+
+        /** Cursor position after the change */
+        public int getNewPosition() {
+            return mNewPosition;
+        }
+
+        /**
+         * Returns {@code true} if the song at index needs to be redrawn after a change that
+         * isn't structural (an update or cursor move).
+         */
+        public boolean isUpdated(int index) {
+            if (isStructural())
+                return true;
+            if (isCursorChanged() && (index == mOldPosition || index == mNewPosition))
+                return true;
+            for (Op op : mOps)
+                if (index >= op.index && index < op.index + op.count)
+                    return true;
+            return false;
+        }
+
+        boolean isEmpty() {
+            return ! isPlaylistChanged() && ! isCursorChanged();
+        }
+    }
+
+    /**
+     * Starts a batch of changes, which notifies observers once in {@link #commitBatch()}.
+     *
+     * <p>Batches can be nested; observers are notified when the outermost batch is committed.
+     */
+    public void beginBatch() {
+        if (mBatchDepth++ == 0)
+            mChange = new Change(mPos);
+    }
+
+    /** Ends a batch of changes started with {@link #beginBatch()}. */
+    public void commitBatch() {
+        if (mBatchDepth <= 0)
+            throw new IllegalStateException("commitBatch() without beginBatch()");
+        if (--mBatchDepth > 0)
+            return;
+        Change change = mChange;
+        mChange = null;
+        change.mNewPosition = mPos;
+        if (! change.isEmpty())
+            mObservable.notifyChange(change);
+    }
+
+    // Record a change, notifying right away outside of a batch
+    private void onChange(int type, int index, int count, int toIndex) {
+        beginBatch();
+        mChange.add(type, index, count, toIndex);
+        commitBatch();
+    }
+
+    private void onReset() {
+        beginBatch();
+        mChange.reset();
+        commitBatch();
+    }
+
     /**
      * Registers an observer.
      *
@@ -163,10 +418,12 @@ public class Playlist extends ArrayList<Playlist.Song> {
      */
     public Song moveToPosition(int pos) {
         pos = Math.max(-1, Math.min(pos, size()));
-        boolean hasChanged = pos != mPos;
-        mPos = pos;
-        if (hasChanged)
-            mObservable.notifyCursorChanged();
+        if (pos != mPos) {
+            beginBatch();
+            mPos = pos;
+            journalPosition();
+            commitBatch();
+        }
         return getCurrent();
     }
 
@@ -209,7 +466,7 @@ public class Playlist extends ArrayList<Playlist.Song> {
 
     /** Adds all {@link Song}s in a cursor.
      *
-     * <p>Observers are notified only once if the Playlist is changed, not for each song.
+     * <p>Observers are notified once with a single insert, not for each song.
      *
      * @param cursor Cursor from {@link #getSongQuery(Object, Object...)}
      * @return {@code true} if there any rows exist in the cursor, {@code false} otherwise
@@ -218,11 +475,14 @@ public class Playlist extends ArrayList<Playlist.Song> {
     public boolean addAll(Cursor cursor) {
         if (! cursor.moveToFirst())
             return false;
+        int index = size();
         do {
             // Don't notify for every song
             super.add(new Song(cursor));
         } while(cursor.moveToNext());
-        mObservable.notifyPlaylistChanged();
+        if (mJournal != null)
+            mJournal.add(index, subList(index, size()));
+        onChange(Change.INSERT, index, size() - index, 0);
         return true;
     }
 
@@ -231,7 +491,9 @@ public class Playlist extends ArrayList<Playlist.Song> {
     @Override
     public boolean add(Song object) {
         if (super.add(object)) {
-            mObservable.notifyPlaylistChanged();
+            if (mJournal != null)
+                mJournal.add(size() - 1, Collections.singletonList(object));
+            onChange(Change.INSERT, size() - 1, 1, 0);
             return true;
         }
         return false;
@@ -240,19 +502,24 @@ public class Playlist extends ArrayList<Playlist.Song> {
     @Override
     public void add(int index, Song object) {
         super.add(index, object);
+        if (mJournal != null)
+            mJournal.add(index, Collections.singletonList(object));
+        beginBatch();
         if (index <= mPos) {
             ++mPos;
-            mObservable.notifyChanged();
-        }
-        else {
-            mObservable.notifyPlaylistChanged();
+            journalPosition();
         }
+        mChange.add(Change.INSERT, index, 1, 0);
+        commitBatch();
     }
 
     @Override
     public boolean addAll(Collection<? extends Song> collection) {
+        int index = size();
         if (super.addAll(collection)) {
-            mObservable.notifyPlaylistChanged();
+            if (mJournal != null)
+                mJournal.add(index, collection);
+            onChange(Change.INSERT, index, collection.size(), 0);
             return true;
         }
         return false;
@@ -260,22 +527,29 @@ public class Playlist extends ArrayList<Playlist.Song> {
 
     // Replace all songs in the playlist with these songs (avoids extra notifications)
     public boolean replaceWith(Collection<? extends Song> collection) {
+        beginBatch();
         super.clear();
         boolean result = super.addAll(collection);
         mPos = collection.size() > 0 ? 0 : -1;
-        mObservable.notifyChanged();
+        if (mJournal != null)
+            mJournal.snapshot();
+        mChange.reset();
+        commitBatch();
         return result;
     }
 
     @Override
     public boolean addAll(int index, Collection<? extends Song> collection) {
         if (super.addAll(index, collection)) {
+            if (mJournal != null)
+                mJournal.add(index, collection);
+            beginBatch();
             if (index <= mPos && ! collection.isEmpty()) {
                 mPos += collection.size();
-                mObservable.notifyChanged();
+                journalPosition();
             }
-            else
-                mObservable.notifyPlaylistChanged();
+            mChange.add(Change.INSERT, index, collection.size(), 0);
+            commitBatch();
             return true;
         }
         return false;
@@ -284,29 +558,57 @@ public class Playlist extends ArrayList<Playlist.Song> {
     @Override
     public Song set(int index, Song object) {
         Song song = super.set(index, object);
+        if (mJournal != null)
+            mJournal.set(index, object);
         if (song != null)
-            mObservable.notifyPlaylistChanged();
+            onChange(Change.UPDATE, index, 1, 0);
         return song;
     }
 
+    /**
+     * Sets a song's {@code STATUS_*}, saving it and notifying observers.
+     *
+     * @param song song in the playlist (other songs are just updated)
+     * @param status {@code Song.STATUS_*}
+     */
+    public void setStatus(Song song, int status) {
+        if (song.status == status)
+            return;
+        song.status = status;
+        int index = indexOf(song);
+        if (index == -1)
+            return;
+        if (mJournal != null)
+            mJournal.set(index, song);
+        onChange(Change.UPDATE, index, 1, 0);
+    }
+
     @Override
     public Song remove(int index) {
         Song song = super.remove(index);
         if (song != null) {
+            if (mJournal != null)
+                mJournal.remove(index);
+            beginBatch();
             if (index <= mPos) {
                 --mPos;
-                mObservable.notifyChanged();
+                journalPosition();
             }
-            else
-                mObservable.notifyPlaylistChanged();
+            mChange.add(Change.REMOVE, index, 1, 0);
+            commitBatch();
         }
         return song;
     }
 
     public void move(int from, int to) {
+        if (from == to)
+            return;
         int lastPos = getPosition();
+        beginBatch();
         super.add(to, super.remove(from));
-        mObservable.notifyChanged();
+        if (mJournal != null)
+            mJournal.move(from, to);
+        mChange.add(Change.MOVE, from, 1, to);
         // Update now playing
         if (from == lastPos) // moved playing item
             moveToPosition(to);
@@ -314,6 +616,7 @@ public class Playlist extends ArrayList<Playlist.Song> {
             moveToPosition(lastPos - 1);
         else if (from > lastPos && to <= lastPos) // moved an item from after to before
             moveToPosition(lastPos + 1);
+        commitBatch();
     }
 
 
@@ -321,7 +624,118 @@ public class Playlist extends ArrayList<Playlist.Song> {
     public void clear() {
         mPos = -1;
         super.clear();
-        mObservable.notifyChanged();
+        if (mJournal != null)
+            mJournal.snapshot();
+        onReset();
+    }
+
+    // Persistence
+    // ------------------------------------------------------------------------------------------
+    // Notify that restored songs were loaded (they may have moved since they were restored)
+    private void notifyLoaded(List<Song> songs, int start, int end) {
+        beginBatch();
+        for (int i = start; i < end; i++) {
+            int index = i < size() && get(i) == songs.get(i) ? i : indexOf(songs.get(i));
+            if (index != -1)
+                mChange.add(Change.UPDATE, index, 1, 0);
+        }
+        commitBatch();
+    }
+
+    private void journalPosition() {
+        if (mJournal != null)
+            mJournal.position(mPos);
+    }
+
+    /**
+     * Restores the playlist saved by a previous process, and saves changes from now on.
+     *
+     * <p>The journal is read in the background. Songs are restored with only their lead ids
+     * and are loaded from the database in batches (starting with the current song), with
+     * a notification for each batch. If the playlist changes before it is restored, the
+     * saved playlist is discarded.
+     *
+     * @param context context
+     */
+    public void restore(Context context) {
+        if (mJournal != null)
+            return;
+        mJournal = new PlaylistJournal(context.getApplicationContext(), this);
+        mJournal.restore(new PlaylistJournal.RestoreListener() {
+            @Override
+            public void onRestored(long[] leadIds, int[] statuses, int position) {
+                if (mJournal.hasChanges()) {
+                    mJournal.snapshot(); // Replace the saved playlist
+                    return;
+                }
+                List<Song> songs = new ArrayList<>(leadIds.length);
+                for (int i = 0; i < leadIds.length; i++)
+                    songs.add(new Song(leadIds[i], statuses[i]));
+                beginBatch();
+                Playlist.super.addAll(songs);
+                mPos = position;
+                mChange.reset();
+                commitBatch();
+                load(songs, position);
+            }
+        });
+    }
+
+    // Load restored songs from the database in batches, starting with the batch at position
+    private void load(final List<Song> songs, int position) {
+        if (songs.isEmpty())
+            return;
+        final Object[] leadIds = new Object[songs.size()];
+        for (int i = 0; i < leadIds.length; i++)
+            leadIds[i] = songs.get(i).leadId;
+        final int first = Math.max(0, Math.min(position, leadIds.length - 1)) / LOAD_BATCH_SIZE * LOAD_BATCH_SIZE;
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final SQL.Query query = getValuesSongQuery(C.SongLeader.leadId);
+        LoaderExecutor.getInstance().getExecutor(MinutesLoader.PRIORITY_LIST, null).execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                loadBatch(first);
+                for (int i = 0; i < leadIds.length; i += LOAD_BATCH_SIZE) {
+                    if (i != first)
+                        loadBatch(i);
+                }
+                Log.v("Playlist", "Loaded " + leadIds.length + " songs in " +
+                      (System.nanoTime() - start) / 1000000 + "ms");
+            }
+
+            private void loadBatch(final int start) {
+                final int end = Math.min(leadIds.length, start + LOAD_BATCH_SIZE);
+                final List<Song> loaded = new ArrayList<>(end - start);
+                final List<Integer> positions = new ArrayList<>(end - start);
+                MinutesDb.getInstance().queryValues(leadIds, start, end, query,
+                        new MinutesDb.CursorReader<Void>() {
+                            @Override
+                            public Void read(Cursor cursor) {
+                                int posColumn = cursor.getColumnCount() - 1;
+                                while (cursor.moveToNext()) {
+                                    loaded.add(new Song(cursor));
+                                    positions.add(cursor.getInt(posColumn));
+                                }
+                                return null;
+                            }
+                        });
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < loaded.size(); i++)
+                            songs.get(positions.get(i)).load(loaded.get(i));
+                        beginBatch();
+                        // Songs that aren't in the database anymore
+                        for (int i = start; i < end; i++)
+                            if (! songs.get(i).isLoaded())
+                                setStatus(songs.get(i), Song.STATUS_ERROR);
+                        notifyLoaded(songs, start, end);
+                        commitBatch();
+                    }
+                });
+            }
+        });
     }
 
     // These methods make managing the currentSong pointer tricky, so they are unsupported
@@ -145,8 +145,7 @@ public class PlaylistFragment extends ListFragment
 
     @Override
     public void drop(int from, int to) {
-        mPlaylist.move(from, to);
-        ((BaseAdapter)getListAdapter()).notifyDataSetChanged();
+        mPlaylist.move(from, to); // Notifies the adapter
     }
 
     /**
@@ -156,6 +155,7 @@ public class PlaylistFragment extends ListFragment
         Context mContext;
         LayoutInflater mInflater;
         Playlist mPlaylist;
+        int mObserverCount = 0;
 
         public PlaylistListAdapter(Context context, Playlist playlist) {
             mContext = context;
@@ -207,14 +207,36 @@ public class PlaylistFragment extends ListFragment
         // Playlist change observers
         @Override
         public void registerDataSetObserver(DataSetObserver observer) {
-            mPlaylist.registerObserver(new PlaylistObserver.Wrapper(observer));
             super.registerDataSetObserver(observer);
+            if (mObserverCount++ == 0)
+                mPlaylist.registerObserver(mPlaylistObserver);
         }
 
         @Override
         public void unregisterDataSetObserver(DataSetObserver observer) {
-            mPlaylist.unregisterObserver(new PlaylistObserver.Wrapper(observer));
             super.unregisterDataSetObserver(observer);
+            if (--mObserverCount == 0)
+                mPlaylist.unregisterObserver(mPlaylistObserver);
+        }
+
+        // Structural changes reload the list; updates and cursor moves redraw only visible rows
+        final Playlist.Observer mPlaylistObserver = new Playlist.Observer() {
+            @Override
+            public void onChange(Playlist.Change change) {
+                if (change.isStructural() || mList == null)
+                    notifyDataSetChanged();
+                else
+                    updateRows(change);
+            }
+        };
+
+        void updateRows(Playlist.Change change) {
+            int first = mList.getFirstVisiblePosition();
+            for (int i = 0; i < mList.getChildCount(); i++) {
+                int position = first + i - mList.getHeaderViewsCount();
+                if (position >= 0 && position < getCount() && change.isUpdated(position))
+                    getView(position, mList.getChildAt(i), mList);
+            }
         }
     }
 }
@@ -0,0 +1,444 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves the {@link Playlist} to a binary journal file, so it can be restored after the process
+ * is killed.
+ *
+ * <p>The file starts with a snapshot (lead id and status of each song, and the position),
+ * followed by a record for each change ({@code OP_*}). Once there are more records than songs,
+ * the file is compacted into a new snapshot. A truncated last record is ignored.
+ *
+ * <p>Records are encoded on the calling (main) thread and written in order on a background
+ * thread, which also reads the file in {@link #restore}.
+ */
+public class PlaylistJournal {
+    private static final String TAG = "PlaylistJournal";
+    private static final String FILE_NAME = "playlist.journal";
+    private static final int MAGIC = 0x46534c50; // "FSLP"
+    private static final int VERSION = 1;
+    private static final int MIN_COMPACT_RECORDS = 256;
+    private static final int HEADER_BYTES = 16; // magic, version, count, position
+    private static final int SONG_BYTES = 9; // leadId, status
+
+    // Records
+    private static final byte OP_ADD = 1; // index, count, (leadId, status) * count
+    private static final byte OP_REMOVE = 2; // index
+    private static final byte OP_MOVE = 3; // from, to
+    private static final byte OP_SET = 4; // index, leadId, status
+    private static final byte OP_POSITION = 5; // position
+
+    /** Called on the main thread with the restored playlist. */
+    public interface RestoreListener {
+        void onRestored(long[] leadIds, int[] statuses, int position);
+    }
+
+    private final File mFile;
+    private final Playlist mPlaylist;
+    private final ThreadPoolExecutor mWriter;
+    private DataOutputStream mOut; // Writer thread only
+    private int mRecords = 0; // Records since the last snapshot
+    private int mPosition = -1; // Last journaled position
+    private boolean mHasChanges = false; // Has anything been journaled since restore()?
+
+    PlaylistJournal(Context context, Playlist playlist) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        mPlaylist = playlist;
+        // One thread, so writes happen in order
+        mWriter = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG);
+                    }
+                });
+        mWriter.allowCoreThreadTimeOut(true);
+    }
+
+    // Records
+    // ------------------------------------------------------------------------------------------
+    /** Songs were inserted at index. */
+    public void add(int index, Collection<? extends Playlist.Song> songs) {
+        if (songs.isEmpty())
+            return;
+        Record record = new Record(OP_ADD);
+        record.writeInt(index);
+        record.writeInt(songs.size());
+        for (Playlist.Song song : songs)
+            record.writeSong(song);
+        append(record);
+    }
+
+    /** The song at index was removed. */
+    public void remove(int index) {
+        Record record = new Record(OP_REMOVE);
+        record.writeInt(index);
+        append(record);
+    }
+
+    /** A song was moved. */
+    public void move(int from, int to) {
+        Record record = new Record(OP_MOVE);
+        record.writeInt(from);
+        record.writeInt(to);
+        append(record);
+    }
+
+    /** The song at index was replaced. */
+    public void set(int index, Playlist.Song song) {
+        Record record = new Record(OP_SET);
+        record.writeInt(index);
+        record.writeSong(song);
+        append(record);
+    }
+
+    /** The cursor moved (no-op if the position hasn't changed). */
+    public void position(int position) {
+        if (position == mPosition)
+            return;
+        mPosition = position;
+        Record record = new Record(OP_POSITION);
+        record.writeInt(position);
+        append(record);
+    }
+
+    /** Has anything been journaled since {@link #restore}? */
+    boolean hasChanges() {
+        return mHasChanges;
+    }
+
+    /** Replaces the file with a snapshot of the playlist (e.g. when it is cleared). */
+    public void snapshot() {
+        final int count = mPlaylist.size();
+        final long[] leadIds = new long[count];
+        final int[] statuses = new int[count];
+        for (int i = 0; i < count; i++) {
+            leadIds[i] = mPlaylist.get(i).leadId;
+            statuses[i] = mPlaylist.get(i).status;
+        }
+        final int position = mPlaylist.getPosition();
+        mPosition = position;
+        mRecords = 0;
+        mHasChanges = true;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSnapshot(leadIds, statuses, position);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing " + mFile, e);
+                }
+            }
+        });
+    }
+
+    private void append(final Record record) {
+        mHasChanges = true;
+        // Compact once the records take more space than a snapshot would
+        if (++mRecords > Math.max(MIN_COMPACT_RECORDS, mPlaylist.size())) {
+            snapshot();
+            return;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (mOut == null)
+                        mOut = openForAppend();
+                    record.writeTo(mOut);
+                    mOut.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing " + mFile, e);
+                }
+            }
+        });
+    }
+
+    // A record encoded on the main thread
+    private static class Record {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream(32);
+        private final DataOutputStream mData = new DataOutputStream(mBytes);
+
+        Record(byte op) {
+            try {
+                mData.writeByte(op);
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // Not expected with a ByteArrayOutputStream
+            }
+        }
+
+        void writeInt(int v) {
+            try {
+                mData.writeInt(v);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void writeSong(Playlist.Song song) {
+            try {
+                mData.writeLong(song.leadId);
+                mData.writeByte(song.status);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            mBytes.writeTo(out);
+        }
+    }
+
+    // File
+    // ------------------------------------------------------------------------------------------
+    // Writer thread
+    private DataOutputStream openForAppend() throws IOException {
+        if (! mFile.exists() || mFile.length() == 0) {
+            writeSnapshot(new long[0], new int[0], -1);
+            return mOut;
+        }
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+    }
+
+    // Writer thread: write a new file and leave mOut open for appending
+    private void writeSnapshot(long[] leadIds, int[] statuses, int position) throws IOException {
+        if (mOut != null) {
+            mOut.close();
+            mOut = null;
+        }
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(leadIds.length);
+            out.writeInt(position);
+            for (int i = 0; i < leadIds.length; i++) {
+                out.writeLong(leadIds[i]);
+                out.writeByte(statuses[i]);
+            }
+        } finally {
+            out.close();
+        }
+        if (! tmpFile.renameTo(mFile))
+            throw new IOException("Unable to rename " + tmpFile + " to " + mFile);
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+    }
+
+    /**
+     * Reads the file on the background thread.
+     *
+     * <p>Call before journaling any changes, so they are written after the file is read.
+     *
+     * @param listener called on the main thread (not called if there is no saved playlist)
+     */
+    public void restore(final RestoreListener listener) {
+        final Handler handler = new Handler(Looper.getMainLooper());
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                Replay result;
+                try {
+                    result = read();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading " + mFile, e);
+                    result = new Replay(0);
+                }
+                if (result == null)
+                    return;
+                final Replay replay = result;
+                // Don't append after bytes that can't be read: start over with what was read
+                if (! replay.mIsClean) {
+                    try {
+                        writeSnapshot(Arrays.copyOf(replay.mLeadIds, replay.mCount),
+                                      Arrays.copyOf(replay.mStatuses, replay.mCount),
+                                      replay.mPosition);
+                        replay.mRecords = 0;
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error writing " + mFile, e);
+                    }
+                }
+                Log.v(TAG, "Read " + replay.mCount + " songs in " +
+                           (System.nanoTime() - start) / 1000000 + "ms");
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (! mHasChanges) {
+                            mPosition = replay.mPosition;
+                            mRecords = replay.mRecords;
+                        }
+                        listener.onRestored(Arrays.copyOf(replay.mLeadIds, replay.mCount),
+                                            Arrays.copyOf(replay.mStatuses, replay.mCount),
+                                            replay.mPosition);
+                    }
+                });
+            }
+        });
+    }
+
+    // Replay the file (returns null if there is no file)
+    // The replay is marked clean only if it reached the end of the file without errors
+    private Replay read() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Unknown file format: " + mFile);
+                return new Replay(0);
+            }
+            // Counts can't be more than the file holds
+            int maxCount = (int) Math.min(Integer.MAX_VALUE, mFile.length() / SONG_BYTES);
+            int count = in.readInt();
+            if (count < 0 || count > (mFile.length() - HEADER_BYTES) / SONG_BYTES) {
+                Log.w(TAG, "Invalid snapshot size " + count + " in " + mFile);
+                return new Replay(0);
+            }
+            Replay replay = new Replay(count);
+            replay.mPosition = in.readInt();
+            for (int i = 0; i < count; i++)
+                replay.add(replay.mCount, in.readLong(), in.readByte());
+            // Records (stop at a truncated or unknown record)
+            try {
+                while (true) {
+                    int op = in.read();
+                    if (op == -1) {
+                        replay.mIsClean = true; // End of the journal
+                        break;
+                    }
+                    replay.mRecords++;
+                    if (op == OP_ADD) {
+                        int index = in.readInt();
+                        int n = in.readInt();
+                        if (n < 0 || n > maxCount)
+                            throw new IndexOutOfBoundsException("Invalid count " + n);
+                        long[] leadIds = new long[n];
+                        int[] statuses = new int[n];
+                        for (int i = 0; i < n; i++) {
+                            leadIds[i] = in.readLong();
+                            statuses[i] = in.readByte();
+                        }
+                        for (int i = 0; i < n; i++)
+                            replay.add(index + i, leadIds[i], statuses[i]);
+                    }
+                    else if (op == OP_REMOVE) {
+                        replay.remove(in.readInt());
+                    }
+                    else if (op == OP_MOVE) {
+                        int from = in.readInt();
+                        int to = in.readInt();
+                        replay.checkIndex(from);
+                        long leadId = replay.mLeadIds[from];
+                        int status = replay.mStatuses[from];
+                        replay.remove(from);
+                        replay.add(to, leadId, status);
+                    }
+                    else if (op == OP_SET) {
+                        int index = in.readInt();
+                        replay.checkIndex(index);
+                        replay.mLeadIds[index] = in.readLong();
+                        replay.mStatuses[index] = in.readByte();
+                    }
+                    else if (op == OP_POSITION) {
+                        replay.mPosition = in.readInt();
+                    }
+                    else {
+                        Log.w(TAG, "Unknown record " + op + " in " + mFile);
+                        break;
+                    }
+                }
+            } catch (EOFException e) {
+                Log.w(TAG, "Truncated record in " + mFile);
+            } catch (IndexOutOfBoundsException e) {
+                Log.w(TAG, "Invalid record in " + mFile, e);
+            }
+            replay.mPosition = Math.max(-1, Math.min(replay.mPosition, replay.mCount));
+            return replay;
+        } catch (EOFException e) {
+            Log.w(TAG, "Truncated snapshot in " + mFile);
+            return new Replay(0);
+        } finally {
+            in.close();
+        }
+    }
+
+    // Playlist contents as growable arrays
+    private static class Replay {
+        long[] mLeadIds;
+        int[] mStatuses;
+        int mCount = 0;
+        int mPosition = -1;
+        int mRecords = 0;
+        boolean mIsClean = false;
+
+        Replay(int capacity) {
+            mLeadIds = new long[Math.max(16, capacity)];
+            mStatuses = new int[mLeadIds.length];
+        }
+
+        void add(int index, long leadId, int status) {
+            if (index < 0 || index > mCount)
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + mCount);
+            if (mCount == mLeadIds.length) {
+                mLeadIds = Arrays.copyOf(mLeadIds, mCount * 2);
+                mStatuses = Arrays.copyOf(mStatuses, mCount * 2);
+            }
+            System.arraycopy(mLeadIds, index, mLeadIds, index + 1, mCount - index);
+            System.arraycopy(mStatuses, index, mStatuses, index + 1, mCount - index);
+            mLeadIds[index] = leadId;
+            mStatuses[index] = status;
+            mCount++;
+        }
+
+        void checkIndex(int index) {
+            if (index < 0 || index >= mCount)
+                throw new IndexOutOfBoundsException("Index " + index + ", size " + mCount);
+        }
+
+        void remove(int index) {
+            checkIndex(index);
+            System.arraycopy(mLeadIds, index + 1, mLeadIds, index, mCount - index - 1);
+            System.arraycopy(mStatuses, index + 1, mStatuses, index, mCount - index - 1);
+            mCount--;
+        }
+    }
+}
@@ -9,7 +9,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.database.DataSetObserver;
 import androidx.annotation.NonNull;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
@@ -130,28 +129,4 @@ public class PlaylistObserver extends Playlist.Observer {
     /** Override to handle broadcasts. */
     public void onReceive(Context context, Intent intent) {
     }
-
-    /** Wrapper class to use DatasetObserver as a PlaylistObserver. */
-    public static class Wrapper extends Playlist.Observer {
-        DataSetObserver mObserver;
-
-        public Wrapper(DataSetObserver observer) {
-            mObserver = observer;
-        }
-
-        @Override
-        public void onChanged() {
-            mObserver.onChanged();
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            return o instanceof Wrapper && mObserver.equals(((Wrapper)o).mObserver);
-        }
-
-        @Override
-        public int hashCode() {
-            return mObserver.hashCode();
-        }
-    }
 }
@@ -0,0 +1,325 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import android.content.ComponentCallbacks2;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of query results, keyed by compiled SQL and args.
+ *
+ * <p>The database only changes when the asset database is installed or upgraded, so results
+ * stay valid until {@link MinutesDb} is reopened (which calls {@link #clear}).
+ *
+ * <p>Results are copied out of the Cursor into immutable column arrays. Each cache hit gets
+ * its own lightweight Cursor over the shared arrays. The cache is bounded by the estimated
+ * size of the results in bytes, with LRU eviction, and is trimmed in
+ * {@link MinutesApplication#onTrimMemory}.
+ */
+public class QueryCache {
+    private static final String TAG = "QueryCache";
+    // Results with more cells than this aren't worth copying (e.g. full lists with paging)
+    public static final int MAX_CELLS = 64 * 1024;
+
+    // Singleton
+    private static QueryCache instance = null;
+
+    private QueryCache() {
+        mMaxBytes = Runtime.getRuntime().maxMemory() / 16;
+    }
+
+    public static synchronized QueryCache getInstance() {
+        if (instance == null)
+            instance = new QueryCache();
+        return instance;
+    }
+
+    private final long mMaxBytes;
+    private long mBytes = 0;
+    // Access order makes this an LRU
+    private final Map<Key, Result> mResults = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Queries the database, using a cached result if there is one.
+     *
+     * @param db database
+     * @param query query
+     * @param cancellationSignal signal to abort the query (may be null)
+     * @param args query args
+     * @return Cursor (a cached result, or the database Cursor if the result can't be cached)
+     */
+    public Cursor query(MinutesDb db, SQL.Query query, CancellationSignal cancellationSignal,
+                        String... args) {
+        SQL.Compiled compiled = query.compile();
+        Key key = new Key(compiled.getSql(), compiled.bindArgs(args));
+        Result result;
+        synchronized (this) {
+            result = mResults.get(key);
+        }
+        if (result != null)
+            return new ResultCursor(result);
+        Cursor cursor = db.query(query, cancellationSignal, args);
+        try {
+            if ((long) cursor.getCount() * cursor.getColumnCount() > MAX_CELLS)
+                return cursor;
+            result = Result.copy(cursor);
+        } catch (RuntimeException e) {
+            // Including OperationCanceledException
+            cursor.close();
+            throw e;
+        }
+        if (result == null) {
+            cursor.moveToPosition(-1);
+            return cursor;
+        }
+        cursor.close();
+        put(key, result);
+        return new ResultCursor(result);
+    }
+
+    // Add a result and evict the least-recently-used results over the limit
+    private synchronized void put(Key key, Result result) {
+        if (result.bytes > mMaxBytes / 4)
+            return;
+        Result old = mResults.put(key, result);
+        if (old != null)
+            mBytes -= old.bytes;
+        mBytes += result.bytes;
+        trimToSize(mMaxBytes);
+    }
+
+    private synchronized void trimToSize(long maxBytes) {
+        Iterator<Result> it = mResults.values().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            mBytes -= it.next().bytes;
+            it.remove();
+        }
+    }
+
+    /** Removes all cached results (e.g. when the database changes). */
+    public synchronized void clear() {
+        mResults.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Shrinks the cache in response to {@link ComponentCallbacks2#onTrimMemory}.
+     *
+     * @param level trim memory level
+     */
+    public synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            clear();
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+            trimToSize(mMaxBytes / 2);
+        Log.v(TAG, "Trimmed to " + mBytes + " bytes (level " + level + ")");
+    }
+
+    // SQL text and bound args
+    private static final class Key {
+        final String sql;
+        final String[] args;
+        final int hash;
+
+        Key(String sql, String[] args) {
+            this.sql = sql;
+            this.args = args;
+            hash = 31 * sql.hashCode() + Arrays.hashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (! (o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return hash == other.hash && sql.equals(other.sql) && Arrays.equals(args, other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // Immutable result columns
+    // Integer columns are stored as longs; everything else as the Cursor's string values
+    private static final class Result {
+        final String[] columnNames;
+        final int count;
+        final int[] types; // Cursor.FIELD_TYPE_* of the first non-null value in each column
+        final long[][] longs; // [column][row] (or null for string columns)
+        final String[][] strings; // [column][row] (or null for integer columns)
+        final BitSet[] nulls; // Null rows in integer columns
+        final long bytes; // Estimated size
+
+        private Result(String[] columnNames, int count, int[] types, long[][] longs,
+                       String[][] strings, BitSet[] nulls, long bytes) {
+            this.columnNames = columnNames;
+            this.count = count;
+            this.types = types;
+            this.longs = longs;
+            this.strings = strings;
+            this.nulls = nulls;
+            this.bytes = bytes;
+        }
+
+        // Copy all rows (returns null if the result can't be cached, e.g. it has blobs)
+        static Result copy(Cursor cursor) {
+            String[] columnNames = cursor.getColumnNames();
+            int nColumns = columnNames.length;
+            int count = cursor.getCount();
+            int[] types = new int[nColumns];
+            Arrays.fill(types, Cursor.FIELD_TYPE_NULL);
+            // Find column types
+            boolean[] isInteger = new boolean[nColumns];
+            Arrays.fill(isInteger, true);
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                for (int col = 0; col < nColumns; col++) {
+                    int type = cursor.getType(col);
+                    if (type == Cursor.FIELD_TYPE_BLOB)
+                        return null;
+                    if (type != Cursor.FIELD_TYPE_NULL && types[col] == Cursor.FIELD_TYPE_NULL)
+                        types[col] = type;
+                    if (type != Cursor.FIELD_TYPE_NULL && type != Cursor.FIELD_TYPE_INTEGER)
+                        isInteger[col] = false;
+                }
+            }
+            // Copy values
+            long[][] longs = new long[nColumns][];
+            String[][] strings = new String[nColumns][];
+            BitSet[] nulls = new BitSet[nColumns];
+            long bytes = 64;
+            for (int col = 0; col < nColumns; col++) {
+                bytes += 64;
+                if (isInteger[col]) {
+                    longs[col] = new long[count];
+                    nulls[col] = new BitSet(count);
+                    bytes += 8L * count + count / 8;
+                }
+                else {
+                    strings[col] = new String[count];
+                    bytes += 4L * count;
+                }
+            }
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                int row = cursor.getPosition();
+                for (int col = 0; col < nColumns; col++) {
+                    if (longs[col] != null) {
+                        if (cursor.isNull(col))
+                            nulls[col].set(row);
+                        else
+                            longs[col][row] = cursor.getLong(col);
+                    }
+                    else {
+                        String value = cursor.getString(col);
+                        strings[col][row] = value;
+                        if (value != null)
+                            bytes += 40 + 2L * value.length();
+                    }
+                }
+            }
+            return new Result(columnNames, count, types, longs, strings, nulls, bytes);
+        }
+    }
+
+    // Read-only Cursor over a cached Result
+    private static final class ResultCursor extends AbstractCursor {
+        private final Result mResult;
+
+        ResultCursor(Result result) {
+            mResult = result;
+        }
+
+        @Override
+        public int getCount() {
+            return mResult.count;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mResult.columnNames;
+        }
+
+        @Override
+        public String getString(int column) {
+            checkPosition();
+            if (mResult.longs[column] != null)
+                return isNull(column) ? null : Long.toString(mResult.longs[column][mPos]);
+            return mResult.strings[column][mPos];
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            checkPosition();
+            if (mResult.longs[column] != null)
+                return mResult.longs[column][mPos];
+            String value = mResult.strings[column][mPos];
+            if (value == null)
+                return 0;
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return (long) getDouble(column);
+            }
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            checkPosition();
+            if (mResult.longs[column] != null)
+                return mResult.longs[column][mPos];
+            String value = mResult.strings[column][mPos];
+            if (value == null)
+                return 0;
+            try {
+                return Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public int getType(int column) {
+            return isNull(column) ? FIELD_TYPE_NULL : mResult.types[column];
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            checkPosition();
+            if (mResult.longs[column] != null)
+                return mResult.nulls[column].get(mPos);
+            return mResult.strings[column][mPos] == null;
+        }
+    }
+}
@@ -56,6 +56,15 @@ public class RangeIndexer extends StringIndexer {
         if (cursor.getCount() == 0)
             return new String[0];
         // Find the min and max values
+        SectionTable table = SectionTable.fromCursor(cursor, sortedIndexColumn);
+        if (table != null) {
+            try {
+                return makeSections(Integer.parseInt(table.getLabel(0)),
+                                    Integer.parseInt(table.getLabel(table.getRunCount() - 1)));
+            } catch (NumberFormatException e) {
+                // Fall back to the cursor (e.g. null or non-integer values)
+            }
+        }
         cursor.moveToFirst();
         int min = cursor.getInt(sortedIndexColumn);
         cursor.moveToLast();
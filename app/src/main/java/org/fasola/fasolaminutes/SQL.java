@@ -13,6 +13,7 @@ import android.util.Pair;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
@@ -29,6 +30,32 @@ import java.util.regex.Pattern;
 public class SQL {
     public static final String INDEX_COLUMN = "sql_section_index";
 
+    // Markers around bound literals (see bind()); replaced with ? placeholders by Compiled
+    private static final char BIND_START = '\u0001';
+    private static final char BIND_END = '\u0002';
+    // SQLite's default limit on bind args (SQLITE_MAX_VARIABLE_NUMBER before 3.32)
+    private static final int MAX_BIND_ARGS = 999;
+
+    /**
+     * Marks a value to be passed as a bound argument instead of inlined in the SQL text
+     *
+     * <p>The result can be used anywhere in a query (columns, formats, WHERE values).
+     * {@link Query#toString()} shows it as an escaped literal, while {@link Query#compile()}
+     * replaces it with a {@code ?} placeholder, so the SQL text doesn't change with the value.
+     *
+     * @param value value to bind
+     * @return marked literal
+     */
+    public static String bind(Object value) {
+        String str = value.toString().replace(BIND_START, ' ').replace(BIND_END, ' ');
+        return BIND_START + DatabaseUtils.sqlEscapeString(str) + BIND_END;
+    }
+
+    // Is this string already a bound literal?
+    private static boolean isBound(String str) {
+        return ! str.isEmpty() && str.charAt(0) == BIND_START;
+    }
+
     public static class JoinException extends RuntimeException {
         public JoinException() {
             super();
@@ -52,16 +79,113 @@ public class SQL {
         boolean isLeft;
     }
 
-    private static class JoinMap extends HashMap<String, Map<String, JoinEntry>> {
-        public JoinEntry put(Object t1, Object t2, String text, boolean isLeft) {
-            String key1 = t1.toString();
-            String key2 = t2.toString();
-            Map<String, JoinEntry> map = get(key1);
-            if (map == null) {
-                map = new HashMap<>();
-                super.put(key1, map);
+    /**
+     * Graph of joins between tables
+     *
+     * <p>Tables are numbered by name as they are created, and joins are edges. Shortest join
+     * paths between every pair of tables are solved once after the graph changes
+     * (see {@link JoinPaths}).
+     */
+    private static class JoinGraph {
+        private final Map<String, Integer> mIds = new HashMap<>();
+        private final List<String> mNames = new ArrayList<>();
+        private final List<Map<Integer, JoinEntry>> mEdges = new ArrayList<>();
+        private volatile JoinPaths mPaths;
+
+        // Returns the id for a table name, adding the table if necessary
+        synchronized int getId(String name) {
+            Integer id = mIds.get(name);
+            if (id == null) {
+                id = mNames.size();
+                mIds.put(name, id);
+                mNames.add(name);
+                mEdges.add(new HashMap<Integer, JoinEntry>());
+                mPaths = null;
+            }
+            return id;
+        }
+
+        // Returns the id for a table name or -1
+        synchronized int findId(String name) {
+            Integer id = mIds.get(name);
+            return id != null ? id : -1;
+        }
+
+        synchronized void put(int t1, int t2, String text, boolean isLeft) {
+            JoinEntry entry = new JoinEntry(text, isLeft);
+            mEdges.get(t1).put(t2, entry);
+            mEdges.get(t2).put(t1, entry);
+            mPaths = null;
+        }
+
+        JoinPaths getPaths() {
+            JoinPaths paths = mPaths;
+            if (paths == null) {
+                synchronized (this) {
+                    if (mPaths == null)
+                        mPaths = new JoinPaths(mNames, mEdges);
+                    paths = mPaths;
+                }
+            }
+            return paths;
+        }
+    }
+
+    /**
+     * All-pairs shortest join paths (immutable)
+     *
+     * <p>Solved with a breadth-first search from each table, counting the number of shortest
+     * paths so that ambiguous many : many joins can be reported instead of guessed.
+     */
+    private static class JoinPaths {
+        final String[] names;
+        final JoinEntry[][] edges; // edges[t1][t2]: direct join or null
+        final int[][] next; // next[t1][t2]: first table after t1 on the path to t2 (-1 if none)
+        final int[][] dist; // dist[t1][t2]: number of joins from t1 to t2 (-1 if none)
+        final boolean[][] ambiguous; // More than one shortest path
+
+        JoinPaths(List<String> tableNames, List<Map<Integer, JoinEntry>> tableEdges) {
+            int n = tableNames.size();
+            names = tableNames.toArray(new String[n]);
+            edges = new JoinEntry[n][n];
+            for (int t1 = 0; t1 < n; t1++)
+                for (Map.Entry<Integer, JoinEntry> edge : tableEdges.get(t1).entrySet())
+                    edges[t1][edge.getKey()] = edge.getValue();
+            next = new int[n][n];
+            dist = new int[n][n];
+            ambiguous = new boolean[n][n];
+            int[] queue = new int[n];
+            int[] pathCount = new int[n];
+            for (int source = 0; source < n; source++) {
+                int[] sourceNext = next[source];
+                int[] sourceDist = dist[source];
+                Arrays.fill(sourceNext, -1);
+                Arrays.fill(sourceDist, -1);
+                Arrays.fill(pathCount, 0);
+                sourceDist[source] = 0;
+                pathCount[source] = 1;
+                int head = 0, tail = 0;
+                queue[tail++] = source;
+                while (head < tail) {
+                    int t = queue[head++];
+                    for (int other = 0; other < n; other++) {
+                        if (edges[t][other] == null)
+                            continue;
+                        if (sourceDist[other] == -1) {
+                            sourceDist[other] = sourceDist[t] + 1;
+                            sourceNext[other] = t == source ? other : sourceNext[t];
+                            pathCount[other] = pathCount[t];
+                            queue[tail++] = other;
+                        }
+                        else if (sourceDist[other] == sourceDist[t] + 1) {
+                            // Only need to know if there is more than one
+                            pathCount[other] = Math.min(2, pathCount[other] + pathCount[t]);
+                        }
+                    }
+                }
+                for (int target = 0; target < n; target++)
+                    ambiguous[source][target] = pathCount[target] > 1;
             }
-            return map.put(key2, new JoinEntry(text, isLeft));
         }
     }
 
@@ -76,11 +200,13 @@ public class SQL {
         public String TABLE_NAME;
         public Column id;
         protected Map<String, Column> _columns; // Make escaped column key to Column
-        protected static JoinMap joinMap = new JoinMap();
+        protected static JoinGraph joinGraph = new JoinGraph();
+        protected final int tableId; // Index in joinGraph (shared by all DAOs for a table)
         private static final int MAX_KEY_LENGTH = 20;
 
         protected BaseTable(String tableName) {
             TABLE_NAME = tableName;
+            tableId = joinGraph.getId(tableName);
             _columns = new HashMap<>();
             id = column("id");
         }
@@ -133,12 +259,11 @@ public class SQL {
             // Pretend that this is a normal query that joins to this table, then pull off
             // the JOIN ON clause and turn it into a WHERE clause for the subuery
             Query query = col.getTable().select(col).as("col").join(col.getTable(), this);
-            String thisJoin = query.joins.get(TABLE_NAME);
+            String thisJoin = query.removeJoin(this);
             // thisJoin should have a value, since join() will throw an exception
             // if no join is defined between the two tables
             String whereClause = thisJoin.substring(thisJoin.indexOf(" ON ") + 4);
             query.whereList.add(new Query.QueryStringBuilder().append(whereClause));
-            query.joins.remove(TABLE_NAME);
             return subQuery(query.toString());
         }
 
@@ -176,16 +301,7 @@ public class SQL {
         }
 
         public static void join(BaseTable t1, BaseTable t2, String text, boolean isLeft) {
-            joinMap.put(t1, t2, text, isLeft);
-            joinMap.put(t2, t1, text, isLeft);
-        }
-
-        // Get the JoinEntry used to join two tables
-        protected static JoinEntry getJoin(Object t1, Object t2) {
-            Map<String, JoinEntry> map = joinMap.get(t1.toString());
-            if (map == null)
-                return null;
-            return map.get(t2.toString());
+            joinGraph.put(t1.tableId, t2.tableId, text, isLeft);
         }
 
         // Default count for the table is on _id
@@ -262,7 +378,8 @@ public class SQL {
                 query.select(col);
             query.from(this).whereEq(field).group(this.id);
             // Query
-            Cursor cursor = getDb().rawQuery(query.toString(), new String[] {value.toString()});
+            Compiled compiled = query.compile();
+            Cursor cursor = getDb().rawQuery(compiled.getSql(), compiled.bindArgs(value.toString()));
             return fromCursor(cursor);
         }
 
@@ -389,7 +506,7 @@ public class SQL {
 
         // Add the required joins to a query
         public void addJoin(Query query, BaseTable fromTable) {
-            if (fromTable.toString().equals(table.toString()))
+            if (fromTable.tableId == table.tableId)
                 return;
             query.join(fromTable, table);
         }
@@ -473,7 +590,7 @@ public class SQL {
         @Override
         public void addJoin(Query query, BaseTable fromTable) {
             for (BaseTable otherTable : tables)
-                if (! fromTable.toString().equals(otherTable.toString()))
+                if (fromTable.tableId != otherTable.tableId)
                     query.join(fromTable, otherTable);
         }
     }
@@ -491,6 +608,127 @@ public class SQL {
         return q.union(queries);
     }
 
+    /**
+     * An immutable compiled {@link Query}: SQL text plus bind argument slots
+     *
+     * <p>Each slot is either a value bound by the query itself (see {@link SQL#bind}), or
+     * {@code null} for a {@code ?} placeholder that is filled by the caller's args in
+     * {@link #bindArgs}.
+     */
+    public static final class Compiled {
+        private final String mSql;
+        private final String mInlineSql;
+        private final String[] mSlots;
+        private final int mHash;
+
+        // Split raw query text into SQL with placeholders, inline SQL, and slots
+        Compiled(String raw) {
+            StringBuilder sql = new StringBuilder(raw.length());
+            StringBuilder inline = new StringBuilder(raw.length());
+            List<String> slots = new ArrayList<>();
+            char quote = 0;
+            for (int i = 0; i < raw.length(); i++) {
+                char c = raw.charAt(i);
+                if (c == BIND_START) {
+                    int end = raw.indexOf(BIND_END, i);
+                    String literal = raw.substring(i + 1, end);
+                    inline.append(literal);
+                    if (quote == 0) {
+                        sql.append('?');
+                        // Strip the quotes added by sqlEscapeString
+                        slots.add(literal.substring(1, literal.length() - 1).replace("''", "'"));
+                    }
+                    else {
+                        sql.append(literal);
+                    }
+                    i = end;
+                    continue;
+                }
+                if (quote != 0) {
+                    if (c == quote)
+                        quote = 0;
+                }
+                else if (c == '\'' || c == '"') {
+                    quote = c;
+                }
+                else if (c == '?') {
+                    slots.add(null);
+                }
+                sql.append(c);
+                inline.append(c);
+            }
+            mSql = sql.toString();
+            mInlineSql = inline.toString();
+            mSlots = slots.toArray(new String[slots.size()]);
+            mHash = 31 * mSql.hashCode() + Arrays.hashCode(mSlots);
+        }
+
+        /** SQL with {@code ?} placeholders for all slots */
+        public String getSql() {
+            return mSql;
+        }
+
+        /** SQL with bound values written as literals (caller placeholders are kept) */
+        public String getInlineSql() {
+            return mInlineSql;
+        }
+
+        /** Number of slots (bound and unbound) */
+        public int getSlotCount() {
+            return mSlots.length;
+        }
+
+        /**
+         * Merges caller args into the unbound slots
+         *
+         * @param args values for {@code ?} placeholders, in order
+         * @return args for {@link SQLiteDatabase#rawQuery}
+         */
+        public String[] bindArgs(String... args) {
+            if (args == null)
+                args = new String[0];
+            // Nothing bound by the query: the caller's args are used as-is
+            boolean hasBound = false;
+            for (String slot : mSlots)
+                hasBound = hasBound || slot != null;
+            if (! hasBound)
+                return args;
+            List<String> bound = new ArrayList<>(mSlots.length + args.length);
+            int argIdx = 0;
+            for (String slot : mSlots) {
+                if (slot != null)
+                    bound.add(slot);
+                else if (argIdx < args.length)
+                    bound.add(args[argIdx++]);
+            }
+            // Leave extra args at the end so SQLite can complain about them
+            while (argIdx < args.length)
+                bound.add(args[argIdx++]);
+            return bound.toArray(new String[bound.size()]);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (! (o instanceof Compiled))
+                return false;
+            Compiled other = (Compiled) o;
+            return mHash == other.mHash && mSql.equals(other.mSql) &&
+                    Arrays.equals(mSlots, other.mSlots);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public String toString() {
+            return mSql;
+        }
+    }
+
     @SuppressWarnings("SameParameterValue")
     public static class Query {
         // Query elements
@@ -500,6 +738,8 @@ public class SQL {
         protected List<Column> joinColumns = new ArrayList<>();
         protected BaseTable fromTable;
         protected Map<String, String> joins = new LinkedHashMap<>(); // table name, join statement
+        protected BitSet joinedIds = new BitSet(); // joinGraph ids of joined tables
+        protected int[] joinOrder = new int[0]; // joinGraph ids in join order (copied on change)
         protected QueryStringBuilder strGroup = new QueryStringBuilder(" GROUP BY");
         protected List<QueryStringBuilder> havingList = new ArrayList<>();
         protected List<QueryStringBuilder> whereList = new ArrayList<>();
@@ -510,6 +750,9 @@ public class SQL {
 
         protected List<Query> union;
 
+        // Cached result of compile(); cleared whenever the query is changed
+        private Compiled mCompiled;
+
         protected Query(String type, Object... args) {
             queryType = type;
             select(args);
@@ -522,6 +765,8 @@ public class SQL {
             joinColumns = new ArrayList<>(other.joinColumns);
             fromTable = other.fromTable;
             joins = new LinkedHashMap<>(other.joins);
+            joinedIds = (BitSet) other.joinedIds.clone();
+            joinOrder = other.joinOrder;
             strGroup = new QueryStringBuilder(other.strGroup);
             whereList = new ArrayList<>();
             for (QueryStringBuilder q : other.whereList)
@@ -529,11 +774,21 @@ public class SQL {
             havingList = new ArrayList<>();
             for (QueryStringBuilder q : other.havingList)
                 havingList.add(new QueryStringBuilder(q));
-            lastList = other.lastList;
+            // Keep and()/or() on the copy's own list
+            if (other.lastList == other.whereList)
+                lastList = whereList;
+            else if (other.lastList == other.havingList)
+                lastList = havingList;
             strOrder = new QueryStringBuilder(other.strOrder);
             limit = other.limit;
             offset = other.offset;
             union = other.union; // Shouldn't need to change the other queries in the union
+            mCompiled = other.mCompiled; // Immutable, so the copy can share it until it changes
+        }
+
+        // Drop the compiled query after any change
+        protected void invalidate() {
+            mCompiled = null;
         }
 
         // SELECT
@@ -542,6 +797,7 @@ public class SQL {
         // Adds an automatic alias for every column (Column.key or "column[0-n]")
         // Default to FROM the table of the first select argument
         public Query select(Object... cols) {
+            invalidate();
             for (Object col : cols) {
                 String alias = "column" + selectColumns.size();
                 if (col instanceof Column) {
@@ -560,6 +816,7 @@ public class SQL {
         }
 
         public Query distinct(boolean distinct) {
+            invalidate();
             isDistinct = distinct;
             return this;
         }
@@ -570,6 +827,7 @@ public class SQL {
 
         public Query as(String alias) {
             // Update the last alias
+            invalidate();
             int idx = selectColumns.size() - 1;
             Pair<Object, String> pair = selectColumns.get(idx);
             selectColumns.set(idx, Pair.create(pair.first, alias));
@@ -588,16 +846,35 @@ public class SQL {
 
         // Does this query already have a section index column?
         public boolean hasSectionIndex() {
+            return getColumn(INDEX_COLUMN) != null;
+        }
+
+        // Copy the query, keeping only selected columns with the given aliases
+        public Query copyColumns(String... aliases) {
+            Query query = copy();
+            query.invalidate();
+            List<String> aliasList = Arrays.asList(aliases);
+            query.selectColumns = new ArrayList<>();
+            for (Pair<Object, String> col : selectColumns) {
+                if (aliasList.contains(col.second))
+                    query.selectColumns.add(col);
+            }
+            return query;
+        }
+
+        // Get a selected column by alias (or null)
+        public Object getColumn(String alias) {
             for (Pair<Object, String> col : selectColumns) {
-                if (col.second.equals(INDEX_COLUMN))
-                    return true;
+                if (col.second.equals(alias))
+                    return col.first;
             }
-            return false;
+            return null;
         }
 
         // FROM
         // ----
         public Query from(BaseTable table) {
+            invalidate();
             fromTable = table;
             return this;
         }
@@ -631,61 +908,86 @@ public class SQL {
             return _join(table, on1 + " = " + on2, true);
         }
 
-        // Search for a columns to complete this join
+        // Join on an expression (e.g. for a temp table, which isn't in the join graph)
+        public Query join(Object table, String on) {
+            return _join(table, on, false);
+        }
+
+        // Follow the shortest join path to t2
         protected Query _join(BaseTable t1, BaseTable t2, boolean isLeft) {
             // Table already joined
-            if (joins.containsKey(t2.toString()))
+            if (t1.tableId == t2.tableId || joinedIds.get(t2.tableId))
                 return this;
-            // Simple join exists
-            JoinEntry entry = BaseTable.getJoin(t1, t2);
-            if (entry != null)
-                return _join(t2, entry.text, entry.isLeft || isLeft);
-            // Look for a simple join from already joined tables
-            for (String joinTable : joins.keySet()) {
-                entry = BaseTable.getJoin(joinTable, t2);
-                if (entry != null)
-                    return _join(t2, entry.text, entry.isLeft || isLeft);
-            }
-            // Look for many : many join
-            String joinTable = "";
-            Map<String, JoinEntry> map = BaseTable.joinMap.get(t1.TABLE_NAME);
-            if (map == null)
-                throw new JoinException(t1, t2);
-            for (String intermediate : map.keySet()) {
-                if (BaseTable.getJoin(intermediate, t2) != null) {
-                    // Require ambiguous many : many joins to be resolved explicitly
-                    // e.g. select(...).join()
-                    if (joinTable.isEmpty())
-                        joinTable = intermediate;
-                    else
-                        throw new JoinException(
-                                "Multiple join paths exist between " + t1 + " and " + t2 + ". " +
-                                "Ambiguity can be resolved by join()'ing an intermediate table");
-                }
+            JoinPaths paths = BaseTable.joinGraph.getPaths();
+            int target = t2.tableId;
+            // Start from t1 or an already joined table, whichever is closest to t2.
+            // Prefer unambiguous paths, then t1, then tables in join order.
+            int source = t1.tableId;
+            for (int id : joinOrder) {
+                if (paths.dist[id][target] == -1)
+                    continue;
+                int dist = paths.dist[id][target];
+                int bestDist = paths.dist[source][target];
+                if (bestDist == -1 || dist < bestDist ||
+                        (dist == bestDist && paths.ambiguous[source][target] && ! paths.ambiguous[id][target]))
+                    source = id;
             }
-            if (joinTable.isEmpty())
-                throw new JoinException(t1, t2);
-            // Join to the intermediate table
-            JoinEntry firstJoin = BaseTable.getJoin(t1, joinTable);
-            if (firstJoin == null)
-                throw new JoinException(t1, t2);
-            _join(joinTable, firstJoin.text, firstJoin.isLeft || isLeft);
-            // Join to the second table
-            JoinEntry secondJoin = BaseTable.getJoin(joinTable, t2);
-            if (secondJoin == null)
+            if (paths.dist[source][target] == -1)
                 throw new JoinException(t1, t2);
-            _join(t2, secondJoin.text, secondJoin.isLeft || isLeft);
+            // Require ambiguous many : many joins to be resolved explicitly
+            // e.g. select(...).join()
+            if (paths.ambiguous[source][target])
+                throw new JoinException(
+                        "Multiple join paths exist between " + t1 + " and " + t2 + ". " +
+                        "Ambiguity can be resolved by join()'ing an intermediate table");
+            // Join each table along the path
+            for (int id = source; id != target; ) {
+                int hop = paths.next[id][target];
+                JoinEntry entry = paths.edges[id][hop];
+                _join(paths.names[hop], hop, entry.text, entry.isLeft || isLeft);
+                id = hop;
+            }
             return this;
         }
 
         protected Query _join(Object table, String joinOn, boolean isLeft) {
-            if (joins.containsKey(table.toString()))
+            int tableId = table instanceof BaseTable ? ((BaseTable) table).tableId :
+                    BaseTable.joinGraph.findId(table.toString());
+            return _join(table, tableId, joinOn, isLeft);
+        }
+
+        // tableId is the table's joinGraph id, or -1 if it isn't in the graph
+        private Query _join(Object table, int tableId, String joinOn, boolean isLeft) {
+            if (tableId != -1 ? joinedIds.get(tableId) : joins.containsKey(table.toString()))
                 return this;
+            // Joins added while compiling happen before mCompiled is set, so this is safe
+            invalidate();
             joins.put(table.toString(),
                 (isLeft ? " LEFT JOIN " : " JOIN ") + table + " ON " + joinOn);
+            if (tableId != -1) {
+                joinedIds.set(tableId);
+                joinOrder = Arrays.copyOf(joinOrder, joinOrder.length + 1);
+                joinOrder[joinOrder.length - 1] = tableId;
+            }
             return this;
         }
 
+        // Remove a join (returns the join statement, or null if the table wasn't joined)
+        protected String removeJoin(BaseTable table) {
+            String join = joins.remove(table.toString());
+            if (join != null && joinedIds.get(table.tableId)) {
+                invalidate();
+                joinedIds.clear(table.tableId);
+                int[] order = new int[joinOrder.length - 1];
+                int i = 0;
+                for (int id : joinOrder)
+                    if (id != table.tableId)
+                        order[i++] = id;
+                joinOrder = order;
+            }
+            return join;
+        }
+
         protected void addJoinColumn(Object col) {
             if (col instanceof Column)
                 joinColumns.add((Column) col);
@@ -731,8 +1033,8 @@ public class SQL {
             }
             String strVal = val.toString();
             String cmp = strVal.toUpperCase();
-            if (! (strVal.equals("?") || cmp.equals("NULL")))
-                return DatabaseUtils.sqlEscapeString(strVal);
+            if (! (strVal.equals("?") || cmp.equals("NULL") || isBound(strVal)))
+                return bind(strVal);
             return strVal;
         }
 
@@ -748,6 +1050,7 @@ public class SQL {
         }
 
         protected Query _addWhereHaving(Object bool, Object col, Object oper, Object val) {
+            invalidate();
             QueryStringBuilder q = lastList.get(lastList.size() - 1);
             if (oper == null)
                 oper = "=";
@@ -756,9 +1059,28 @@ public class SQL {
             else if (oper.toString().toUpperCase().equals("IN") && val.getClass().isArray()) {
                 // Treat val as an array of objects to be escaped
                 Object[] valArray = (Object[]) val;
-                String[] escapedVals = new String[valArray.length];
-                for (int i = 0; i < valArray.length; i++)
-                    escapedVals[i] = _escapeWhereHaving(valArray[i].toString());
+                String[] escapedVals;
+                if (valArray.length <= MAX_BIND_ARGS) {
+                    // Pad the list to a power of two by repeating the last value, so that lists
+                    // of similar size (e.g. pages of ids) share the same SQL text
+                    int size = 0;
+                    if (valArray.length > 0)
+                        for (size = 1; size < valArray.length; size <<= 1);
+                    size = Math.min(size, MAX_BIND_ARGS);
+                    escapedVals = new String[size];
+                    for (int i = 0; i < size; i++)
+                        escapedVals[i] = _escapeWhereHaving(
+                                valArray[Math.min(i, valArray.length - 1)].toString());
+                }
+                else {
+                    // Too many values to bind: inline them instead
+                    escapedVals = new String[valArray.length];
+                    for (int i = 0; i < valArray.length; i++) {
+                        Object value = valArray[i];
+                        escapedVals[i] = value instanceof Number ? value.toString() :
+                                DatabaseUtils.sqlEscapeString(value.toString());
+                    }
+                }
                 val = "(" + TextUtils.join(",", escapedVals) + ")";
             }
             else {
@@ -773,6 +1095,7 @@ public class SQL {
         // GROUP BY, ORDER BY, LIMIT
         // -------------------------
         public Query group(Object... cols) {
+            invalidate();
             if (! strGroup.isEmpty())
                 strGroup.append(",");
             strGroup.append(" ").appendDelim(", ", cols);
@@ -789,6 +1112,7 @@ public class SQL {
         }
 
         public Query order(Object... args) {
+            invalidate();
             for (int i = 0; i < args.length; i+=2) {
                 if (! strOrder.isEmpty())
                     strOrder.append(", ");
@@ -807,23 +1131,27 @@ public class SQL {
         }
 
         public Query limit(Object limit) {
+            invalidate();
             this.limit = limit;
             return this;
         }
 
         public Query limit(Object offset, Object limit) {
+            invalidate();
             this.offset = offset;
             this.limit = limit;
             return this;
         }
 
         public Query offset(Object offset) {
+            invalidate();
             this.offset = offset;
             return this;
         }
 
         // Union
         public Query union(Query... other) {
+            invalidate();
             if (union == null)
                 union = new ArrayList<>();
             union.addAll(Arrays.asList(other));
@@ -835,8 +1163,30 @@ public class SQL {
             return new Query(this);
         }
 
-        // Assemble the query
+        // Assemble the query (with literal values, e.g. for use as a subquery)
         public String toString() {
+            return compile().getInlineSql();
+        }
+
+        /**
+         * Compiles the query
+         *
+         * <p>The result is cached until the query is changed, so repeated calls
+         * (e.g. from loaders and toString()) don't rebuild the SQL.
+         *
+         * @return {@link Compiled} query
+         */
+        public Compiled compile() {
+            Compiled compiled = mCompiled;
+            if (compiled == null) {
+                compiled = new Compiled(build());
+                mCompiled = compiled;
+            }
+            return compiled;
+        }
+
+        // Assemble the raw SQL, including bound literals
+        protected String build() {
             QueryStringBuilder q = new QueryStringBuilder("SELECT");
             if (isDistinct)
                 q.append(" DISTINCT");
@@ -872,7 +1222,7 @@ public class SQL {
             // Union
             if (union != null)
                 for (Query other : union)
-                    q.append(" UNION ").append(other.toString());
+                    q.append(" UNION ").append(other.build());
             // Order By
             q.append(strOrder);
             // Limit/offset
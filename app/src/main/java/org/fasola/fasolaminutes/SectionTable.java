@@ -0,0 +1,133 @@
+/*
+ * This file is part of FaSoLa Minutes for Android.
+ * Copyright (c) 2016 Mike Richards. All rights reserved.
+ */
+
+package org.fasola.fasolaminutes;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import java.util.Arrays;
+
+/**
+ * Runs of equal {@link SQL#INDEX_COLUMN} values in a sorted cursor, as
+ * (label, start position, count) arrays.
+ *
+ * <p>{@link MinutesLoader} builds the table in the background along with the query, so that
+ * {@link LetterIndexer} and its subclasses can find sections without moving the cursor.
+ */
+public class SectionTable {
+    /** A Cursor that has a SectionTable for its index column. */
+    public interface Source {
+        SectionTable getSectionTable();
+    }
+
+    /** Wraps a Cursor with its SectionTable. */
+    public static class SectionCursor extends CursorWrapper implements Source {
+        private final SectionTable mTable;
+
+        public SectionCursor(Cursor cursor, SectionTable table) {
+            super(cursor);
+            mTable = table;
+        }
+
+        @Override
+        public SectionTable getSectionTable() {
+            return mTable;
+        }
+    }
+
+    private final String[] mLabels; // Index value for each run
+    private final int[] mStarts; // First position of each run
+    private final int mCount; // Total rows
+
+    private SectionTable(String[] labels, int[] starts, int count) {
+        mLabels = labels;
+        mStarts = starts;
+        mCount = count;
+    }
+
+    /**
+     * Gets the SectionTable for a cursor column.
+     *
+     * @param cursor data cursor
+     * @param column column to index
+     * @return SectionTable, or {@code null} if the cursor has no table for this column
+     */
+    public static SectionTable fromCursor(Cursor cursor, int column) {
+        if (! (cursor instanceof Source) || column < 0 ||
+                column != cursor.getColumnIndex(SQL.INDEX_COLUMN))
+            return null;
+        return ((Source) cursor).getSectionTable();
+    }
+
+    /**
+     * Builds a SectionTable by reading the index column from each row.
+     *
+     * <p>Call in the background; the cursor is left before the first row.
+     *
+     * @param cursor data cursor
+     * @param column index column
+     * @return new SectionTable
+     */
+    public static SectionTable build(Cursor cursor, int column) {
+        String[] values = new String[cursor.getCount()];
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext())
+            values[cursor.getPosition()] = cursor.getString(column);
+        cursor.moveToPosition(-1);
+        return build(values);
+    }
+
+    /**
+     * Builds a SectionTable from index values.
+     *
+     * @param values index value for each row
+     * @return new SectionTable
+     */
+    public static SectionTable build(String[] values) {
+        String[] labels = new String[values.length];
+        int[] starts = new int[values.length];
+        int nRuns = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (nRuns == 0 || ! equals(labels[nRuns - 1], values[i])) {
+                labels[nRuns] = values[i];
+                starts[nRuns] = i;
+                nRuns++;
+            }
+        }
+        return new SectionTable(Arrays.copyOf(labels, nRuns), Arrays.copyOf(starts, nRuns),
+                                values.length);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /** Gets the number of runs. */
+    public int getRunCount() {
+        return mLabels.length;
+    }
+
+    /** Gets the total number of rows. */
+    public int getCount() {
+        return mCount;
+    }
+
+    /** Gets the index value for a run. */
+    public String getLabel(int run) {
+        return mLabels[run];
+    }
+
+    /** Gets the first position of a run. */
+    public int getStart(int run) {
+        return mStarts[run];
+    }
+
+    /** Gets the run that contains a position. */
+    public int getRunForPosition(int position) {
+        int run = Arrays.binarySearch(mStarts, position);
+        return run >= 0 ? run : Math.max(0, -run - 2);
+    }
+}
@@ -39,7 +39,7 @@ public class SingingActivity extends SimpleTabActivity {
                 if (singing != null)
                     setTitle(singing.name.getString());
             }
-        });
+        }.setPriority(MinutesLoader.PRIORITY_HEADER));
     }
 
     public static class SingingSongListFragment extends CursorStickyListFragment
@@ -97,7 +97,7 @@ public class SingingActivity extends SimpleTabActivity {
                         }
                     }
                 }
-            });
+            }.setPriority(MinutesLoader.PRIORITY_HEADER));
             updateQuery();
         }
 
@@ -301,7 +301,7 @@ public class SingingActivity extends SimpleTabActivity {
                                 text.split("\n")));
                     }
                 }
-            });
+            }.setPriority(MinutesLoader.PRIORITY_HEADER));
         }
     }
 }
@@ -51,7 +51,7 @@ public class SongActivity extends SimpleTabActivity {
                     setTitle(song.fullName.getString());
                 }
             }
-        });
+        }.setPriority(MinutesLoader.PRIORITY_HEADER));
     }
 
     public interface SongFragment {
@@ -111,7 +111,7 @@ public class SongActivity extends SimpleTabActivity {
                         ((TextView) view.findViewById(R.id.lyrics)).setText(lyrics);
                     }
                 }
-            });
+            }.setPriority(MinutesLoader.PRIORITY_HEADER));
         }
 
         // Add a hanging indent to a string
@@ -183,7 +183,7 @@ public class SongActivity extends SimpleTabActivity {
                                 timesLed + ", by " + leaders + " (" + coleads + ")");
                     }
                 }
-            });
+            }.setPriority(MinutesLoader.PRIORITY_HEADER));
             // Chart
             updateChart();
         }
@@ -266,7 +266,7 @@ public class SongActivity extends SimpleTabActivity {
                     // Update chart title
                     chartTitle.setText(mGraphTitle);
                 }
-            });
+            }.setPriority(MinutesLoader.PRIORITY_CHART));
         }
 
         @Override
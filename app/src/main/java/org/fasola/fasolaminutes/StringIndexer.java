@@ -100,6 +100,15 @@ public class StringIndexer extends LetterIndexer {
      * @return section labels
      */
     protected static String[] makeSections(@NonNull Cursor cursor, int sortedIndexColumn) {
+        // Use the SectionTable if we have one instead of scanning the cursor
+        SectionTable table = SectionTable.fromCursor(cursor, sortedIndexColumn);
+        if (table != null) {
+            ArrayList<String> sections = new ArrayList<>(table.getRunCount());
+            for (int run = 0; run < table.getRunCount(); run++)
+                if (table.getLabel(run) != null)
+                    sections.add(table.getLabel(run));
+            return sections.toArray(new String[sections.size()]);
+        }
         if (! cursor.moveToFirst())
             return new String[0];
         // Find all strings
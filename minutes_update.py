@@ -2,10 +2,12 @@
 """Script to update schema from the iOS database"""
 import sqlite3
 import os, sys, re
+import gzip, hashlib, shutil
 
 FORCE_UPDATE = True
 COMMIT_CHANGES = True
 DATABASE_PATH = r'app/src/main/assets/databases/minutes.db'
+CONTRACT_PATH = r'app/src/main/java/org/fasola/fasolaminutes/MinutesContract.java'
 
 dirname = os.path.dirname(sys.argv[0])
 dbname = os.path.join(dirname, DATABASE_PATH)
@@ -477,6 +479,97 @@ class DropTables(Action):
             print "    %s" % t
             db.execute("DROP TABLE IF EXISTS %s" % t)
 
+# ----------------------------------------------------------------------------
+# Package
+# ----------------------------------------------------------------------------
+
+def package(filename):
+    """Write the compressed database and its checksum (see DbInstaller.java)"""
+    sha = hashlib.sha256()
+    with open(filename, 'rb') as f:
+        for chunk in iter(lambda: f.read(1024 * 1024), b''):
+            sha.update(chunk)
+    with open(filename, 'rb') as f_in:
+        f_out = gzip.open(filename + '.gz', 'wb', 9)
+        try:
+            shutil.copyfileobj(f_in, f_out, 1024 * 1024)
+        finally:
+            f_out.close()
+    with open(filename + '.sha256', 'w') as f:
+        f.write("%s  %s\n" % (sha.hexdigest(), os.path.basename(filename)))
+    print "Wrote %s.gz (%d bytes)" % (filename, os.path.getsize(filename + '.gz'))
+
+def get_db_version():
+    """Read DB_VERSION from MinutesContract.java"""
+    filename = os.path.join(dirname, CONTRACT_PATH)
+    with open(filename, 'r') as f:
+        return int(re.search(r'DB_VERSION\s*=\s*(\d+)', f.read()).group(1))
+
+def write_upgrade(old_filename, old_version, filename):
+    """Write an upgrade script from a previous release of the database (see DbInstaller.java)
+
+    Rows are compared by primary key (or rowid). Changed and new rows are replaced, and
+    missing rows are deleted. If the schema changed, no script is written and the app
+    falls back to a full install.
+    """
+    new_version = get_db_version()
+    out_filename = os.path.join(os.path.dirname(filename), '%s_upgrade_%d-%d.sql' % (
+        os.path.basename(filename), old_version, new_version))
+    conn = sqlite3.connect(filename)
+    conn.text_factory = str
+    conn.execute("ATTACH DATABASE ? AS old", (old_filename,))
+    schema_sql = ("SELECT type, name, sql FROM %s.sqlite_master "
+                  "WHERE name NOT LIKE 'sqlite_%%' AND name <> 'android_metadata' "
+                  "ORDER BY type, name")
+    if (conn.execute(schema_sql % 'main').fetchall() !=
+            conn.execute(schema_sql % 'old').fetchall()):
+        print "Schema changed: no upgrade script (full install)"
+        return
+    tables = [row[0] for row in conn.execute(
+        "SELECT name FROM main.sqlite_master WHERE type = 'table' "
+        "AND name NOT LIKE 'sqlite_%' AND name <> 'android_metadata' ORDER BY name")]
+    count = 0
+    with open(out_filename, 'w') as out:
+        out.write("-- Upgrade %s from version %d to %d\n" % (
+            os.path.basename(filename), old_version, new_version))
+        for table in tables:
+            info = conn.execute("PRAGMA main.table_info(%s)" % table).fetchall()
+            columns = [row[1] for row in info]
+            keys = [row[1] for row in sorted(info, key=lambda row: row[5]) if row[5]]
+            if not keys:
+                # No primary key: use rowid
+                keys = ['rowid']
+                columns = ['rowid'] + columns
+            column_list = ', '.join('"%s"' % c for c in columns)
+            key_list = ', '.join('"%s"' % c for c in keys)
+            # Deleted rows
+            for row in conn.execute(
+                    "SELECT %s FROM old.\"%s\" EXCEPT SELECT %s FROM main.\"%s\"" % (
+                    key_list, table, key_list, table)):
+                where = ' AND '.join('"%s" = %s' % (k, quote(conn, v))
+                                     for k, v in zip(keys, row))
+                out.write('DELETE FROM "%s" WHERE %s;\n' % (table, where))
+                count += 1
+            # New and changed rows
+            for row in conn.execute(
+                    "SELECT %s FROM main.\"%s\" EXCEPT SELECT %s FROM old.\"%s\"" % (
+                    column_list, table, column_list, table)):
+                values = ', '.join(quote(conn, v) for v in row)
+                out.write('INSERT OR REPLACE INTO "%s" (%s) VALUES (%s);\n' % (
+                    table, column_list, values))
+                count += 1
+    conn.close()
+    # Not worth it if it's about as big as the whole database
+    if os.path.getsize(out_filename) > os.path.getsize(filename) / 2:
+        print "Upgrade script is too large: removing it (full install)"
+        os.remove(out_filename)
+        return
+    print "Wrote %s (%d changes)" % (out_filename, count)
+
+def quote(conn, value):
+    """SQL literal for a value"""
+    return conn.execute("SELECT quote(?)", (value,)).fetchone()[0]
+
 # ----------------------------------------------------------------------------
 # Run
 # ----------------------------------------------------------------------------
@@ -493,4 +586,11 @@ if __name__ == '__main__':
         print "Vacuuming db"
         db.execute("VACUUM")
         db.close()
+        print "Compressing db"
+        package(dbname)
+        # Usage: minutes_update.py --upgrade-from <previous release minutes.db> <its DB_VERSION>
+        if '--upgrade-from' in sys.argv:
+            i = sys.argv.index('--upgrade-from')
+            print "Writing upgrade script"
+            write_upgrade(sys.argv[i + 1], int(sys.argv[i + 2]), dbname)
         print "Done"